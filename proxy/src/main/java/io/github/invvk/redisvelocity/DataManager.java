@@ -2,11 +2,10 @@ package io.github.invvk.redisvelocity;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.net.InetAddresses;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.UncheckedExecutionException;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
-import com.google.gson.reflect.TypeToken;
 import com.velocitypowered.api.event.Subscribe;
 import com.velocitypowered.api.event.connection.DisconnectEvent;
 import com.velocitypowered.api.event.connection.PostLoginEvent;
@@ -14,17 +13,20 @@ import com.velocitypowered.api.proxy.Player;
 import io.github.invvk.redisvelocity.events.PlayerChangedServerNetworkEvent;
 import io.github.invvk.redisvelocity.events.PlayerJoinedNetworkEvent;
 import io.github.invvk.redisvelocity.events.PlayerLeftNetworkEvent;
-import io.github.invvk.redisvelocity.events.PubSubMessageEvent;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
 
 import java.net.InetAddress;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * This class manages all the data that RedisVelocity fetches from Redis, along with updates to that data.
@@ -33,24 +35,33 @@ import java.util.concurrent.TimeUnit;
  */
 public class DataManager  {
     private final RedisVelocity plugin;
-    private final Cache<UUID, String> serverCache = createCache();
-    private final Cache<UUID, String> proxyCache = createCache();
-    private final Cache<UUID, InetAddress> ipCache = createCache();
-    private final Cache<UUID, Long> lastOnlineCache = createCache();
+    // One record per remote player, replacing separate caches for the server, proxy, IP and last online time.
+    private final LoadingCache<UUID, StampedRecord> recordCache;
+    // Players without a hash at all, kept briefly so lookups for unknown players don't all go to Redis.
+    private final Cache<UUID, PlayerRecord> unknownCache;
+    private static final PlayerRecord UNKNOWN = new PlayerRecord(null, null, null, -1);
+    // Bumped whenever the hash of a player changes, see invalidate. Invalidating doesn't stop a load that is
+    // already reading the hash, so records are stamped with the generation from before the read and a record
+    // with an older stamp is read again. Players sharing a stripe only cost each other an extra read.
+    private static final int GENERATION_STRIPES = 4096;
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private final AtomicLong epoch = new AtomicLong();
+    private final byte[] serverId = RedisVelocity.getConfiguration().getServerId().getBytes(StandardCharsets.UTF_8);
 
     public DataManager(RedisVelocity plugin) {
         this.plugin = plugin;
-    }
-
-    private static <K, V> Cache<K, V> createCache() {
-        // TODO: Allow customization via cache specification, ala ServerListPlus
-        return CacheBuilder.newBuilder()
-                .maximumSize(1000)
-                .expireAfterWrite(1, TimeUnit.HOURS)
+        // Refreshes, if configured, reload in the background and serve the old record meanwhile.
+        this.recordCache = CacheBuilder.from(RedisVelocity.getConfiguration().getPlayerRecordCache())
+                .recordStats()
+                .build(CacheLoader.asyncReloading(CacheLoader.from(this::loadRecord), plugin.getIoExecutor()));
+        this.unknownCache = CacheBuilder.from(RedisVelocity.getConfiguration().getUnknownPlayerCache())
+                .recordStats()
                 .build();
     }
 
-    private final JsonParser parser = new JsonParser();
+    Map<String, Cache<?, ?>> getCaches() {
+        return ImmutableMap.of("player-records", recordCache, "unknown-players", unknownCache);
+    }
 
     public String getServer(final UUID uuid) {
         Optional<Player> optional = plugin.getServer().getPlayer(uuid);
@@ -60,18 +71,8 @@ public class DataManager  {
             return player.getCurrentServer().isPresent() ? player.getCurrentServer().get().getServerInfo().getName() : null;
         }
 
-        try {
-            return serverCache.get(uuid, () -> {
-                try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                    return Objects.requireNonNull(tmpRsc.hget("player:" + uuid, "server"), "user not found");
-                }
-            });
-        } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().error("Unable to get server", e);
-            throw new RuntimeException("Unable to get server for " + uuid, e);
-        }
+        PlayerRecord record = getRemoteRecord(uuid);
+        return record == null ? null : record.getServer();
     }
 
     public String getProxy(final UUID uuid) {
@@ -81,18 +82,8 @@ public class DataManager  {
             return RedisVelocity.getConfiguration().getServerId();
         }
 
-        try {
-            return proxyCache.get(uuid, () -> {
-                try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                    return Objects.requireNonNull(tmpRsc.hget("player:" + uuid, "proxy"), "user not found");
-                }
-            });
-        } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().error( "Unable to get proxy", e);
-            throw new RuntimeException("Unable to get proxy for " + uuid, e);
-        }
+        PlayerRecord record = getRemoteRecord(uuid);
+        return record == null ? null : record.getProxy();
     }
 
     public InetAddress getIp(final UUID uuid) {
@@ -102,21 +93,8 @@ public class DataManager  {
             return optional.get().getRemoteAddress().getAddress();
         }
 
-        try {
-            return ipCache.get(uuid, () -> {
-                try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                    String result = tmpRsc.hget("player:" + uuid, "ip");
-                    if (result == null)
-                        throw new NullPointerException("user not found");
-                    return InetAddresses.forString(result);
-                }
-            });
-        } catch (ExecutionException | UncheckedExecutionException e) {
-            if (e.getCause() instanceof NullPointerException && e.getCause().getMessage().equals("user not found"))
-                return null; // HACK
-            plugin.getLogger().error("Unable to get IP", e);
-            throw new RuntimeException("Unable to get IP for " + uuid, e);
-        }
+        PlayerRecord record = getRemoteRecord(uuid);
+        return record == null ? null : record.getIp();
     }
 
     public long getLastOnline(final UUID uuid) {
@@ -126,24 +104,187 @@ public class DataManager  {
             return 0;
         }
 
-        try {
-            return lastOnlineCache.get(uuid, () -> {
-                try (Jedis tmpRsc = plugin.getPool().getResource()) {
-                    String result = tmpRsc.hget("player:" + uuid, "online");
-                    return result == null ? -1 : Long.parseLong(result);
+        PlayerRecord record = getRemoteRecord(uuid);
+        return record == null ? -1 : record.getLastOnline();
+    }
+
+    /**
+     * @return everything known about the player, or null if they were never recorded
+     */
+    public PlayerRecord getPlayerRecord(final UUID uuid) {
+        Optional<Player> optional = plugin.getServer().getPlayer(uuid);
+
+        if (optional.isPresent()) {
+            return localRecord(optional.get());
+        }
+
+        return getRemoteRecord(uuid);
+    }
+
+    private static PlayerRecord localRecord(Player player) {
+        return new PlayerRecord(player.getCurrentServer().map(server -> server.getServerInfo().getName()).orElse(null),
+                RedisVelocity.getConfiguration().getServerId(), player.getRemoteAddress().getAddress(), 0);
+    }
+
+    private PlayerRecord getRemoteRecord(final UUID uuid) {
+        PlayerRecord record = unknownCache.getIfPresent(uuid);
+        if (record == null) {
+            long generation = generation(uuid);
+            try {
+                StampedRecord stamped = recordCache.get(uuid);
+                if (stamped.generation != generation) {
+                    // The hash changed while it was being read, read it once more.
+                    recordCache.asMap().remove(uuid, stamped);
+                    stamped = recordCache.get(uuid);
+                    generation = generation(uuid);
                 }
-            });
-        } catch (ExecutionException e) {
-            plugin.getLogger().error("Unable to get last time online", e);
-            throw new RuntimeException("Unable to get last time online for " + uuid, e);
+                record = stamped.record;
+                if (record == UNKNOWN && stamped.generation == generation)
+                    cacheUnknown(uuid, stamped);
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                plugin.getLogger().error("Unable to get player record", e);
+                throw new RuntimeException("Unable to get player record for " + uuid, e);
+            }
+        }
+        return record == UNKNOWN ? null : record;
+    }
+
+    private StampedRecord loadRecord(UUID uuid) {
+        long generation = generation(uuid);
+        try (Jedis tmpRsc = plugin.getPool().getResource()) {
+            Map<String, String> hash = tmpRsc.hgetAll("player:" + uuid);
+            return new StampedRecord(hash.isEmpty() ? UNKNOWN : PlayerRecord.fromHash(hash), generation);
+        }
+    }
+
+    private long generation(UUID uuid) {
+        // Both only ever grow, so the sum changes whenever either does.
+        return epoch.get() + generations.get(Math.floorMod(uuid.hashCode(), GENERATION_STRIPES));
+    }
+
+    private void putRecord(UUID uuid, PlayerRecord record) {
+        recordCache.put(uuid, new StampedRecord(record, generation(uuid)));
+    }
+
+    /**
+     * Moves a player to the unknown cache, unless a record of them was cached meanwhile. Done under the lock of
+     * their record, and messages cache a record before clearing the unknown cache, so a JOIN handled at the same
+     * time can't end up hidden behind the unknown entry.
+     *
+     * @param expected the record the unknown player was read into, or null if none was cached
+     */
+    private void cacheUnknown(UUID uuid, StampedRecord expected) {
+        recordCache.asMap().compute(uuid, (key, current) -> {
+            if (current != expected)
+                return current;
+            unknownCache.put(uuid, UNKNOWN);
+            return null;
+        });
+    }
+
+    private PlayerRecord getCachedRecord(UUID uuid) {
+        StampedRecord stamped = recordCache.getIfPresent(uuid);
+        if (stamped != null && stamped.generation == generation(uuid))
+            return stamped.record;
+        return unknownCache.getIfPresent(uuid);
+    }
+
+    /**
+     * @param generation the generation of the player from before the hash was read, the record isn't cached if
+     *                   the hash changed since
+     */
+    private PlayerRecord cacheRecord(UUID uuid, Map<String, String> hash, long generation) {
+        PlayerRecord record = hash.isEmpty() ? UNKNOWN : PlayerRecord.fromHash(hash);
+        if (generation != generation(uuid))
+            return record;
+        if (record == UNKNOWN)
+            cacheUnknown(uuid, null);
+        else
+            recordCache.put(uuid, new StampedRecord(record, generation));
+        return record;
+    }
+
+    /**
+     * Fetches the servers of several players at once. Local players and cached records are resolved first, the
+     * rest is fetched from Redis in a single pipeline.
+     *
+     * @return the servers of the players that are online, offline players are left out
+     */
+    public Map<UUID, String> getServers(final Collection<UUID> uuids) {
+        Map<UUID, String> servers = new HashMap<>(uuids.size());
+        for (Map.Entry<UUID, PlayerRecord> entry : getPlayerRecords(uuids).entrySet()) {
+            if (entry.getValue().getServer() != null)
+                servers.put(entry.getKey(), entry.getValue().getServer());
         }
+        return servers;
     }
 
-    private void invalidate(UUID uuid) {
-        ipCache.invalidate(uuid);
-        lastOnlineCache.invalidate(uuid);
-        serverCache.invalidate(uuid);
-        proxyCache.invalidate(uuid);
+    /**
+     * Fetches the proxies of several players at once, like {@link #getServers(Collection)}.
+     *
+     * @return the proxies of the players that are online, offline players are left out
+     */
+    public Map<UUID, String> getProxies(final Collection<UUID> uuids) {
+        Map<UUID, String> proxies = new HashMap<>(uuids.size());
+        for (Map.Entry<UUID, PlayerRecord> entry : getPlayerRecords(uuids).entrySet()) {
+            if (entry.getValue().getProxy() != null)
+                proxies.put(entry.getKey(), entry.getValue().getProxy());
+        }
+        return proxies;
+    }
+
+    private Map<UUID, PlayerRecord> getPlayerRecords(final Collection<UUID> uuids) {
+        Map<UUID, PlayerRecord> records = new HashMap<>(uuids.size());
+        List<UUID> misses = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            Optional<Player> optional = plugin.getServer().getPlayer(uuid);
+            if (optional.isPresent()) {
+                records.put(uuid, localRecord(optional.get()));
+                continue;
+            }
+            PlayerRecord record = getCachedRecord(uuid);
+            if (record == null)
+                misses.add(uuid);
+            else if (record != UNKNOWN)
+                records.put(uuid, record);
+        }
+
+        if (misses.isEmpty())
+            return records;
+
+        Map<UUID, Long> generations = new HashMap<>(misses.size());
+        for (UUID uuid : misses) {
+            generations.put(uuid, generation(uuid));
+        }
+        Map<UUID, Response<Map<String, String>>> responses = new HashMap<>(misses.size());
+        try (Jedis tmpRsc = plugin.getPool().getResource()) {
+            Pipeline pipeline = tmpRsc.pipelined();
+            for (UUID uuid : misses) {
+                responses.put(uuid, pipeline.hgetAll("player:" + uuid));
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            plugin.getLogger().error("Unable to get player records", e);
+            throw new RuntimeException("Unable to get records of " + misses.size() + " players", e);
+        }
+        for (Map.Entry<UUID, Response<Map<String, String>>> entry : responses.entrySet()) {
+            PlayerRecord record = cacheRecord(entry.getKey(), entry.getValue().get(), generations.get(entry.getKey()));
+            if (record != UNKNOWN)
+                records.put(entry.getKey(), record);
+        }
+        return records;
+    }
+
+    void invalidate(UUID uuid) {
+        generations.incrementAndGet(Math.floorMod(uuid.hashCode(), GENERATION_STRIPES));
+        recordCache.invalidate(uuid);
+        unknownCache.invalidate(uuid);
+    }
+
+    void invalidateAll() {
+        epoch.incrementAndGet();
+        recordCache.invalidateAll();
+        unknownCache.invalidateAll();
     }
 
     @Subscribe
@@ -158,58 +299,118 @@ public class DataManager  {
         invalidate(event.getPlayer().getUniqueId());
     }
 
-    @Subscribe
-    public void onPubSubMessage(PubSubMessageEvent event) {
-        if (!event.getChannel().equals("redisvelocity-data"))
-            return;
+    /**
+     * Decodes a message on {@code redisvelocity-data}, in either the binary or the JSON format. A BULK_LEAVE is split
+     * up into a LEAVE per player, so every message can be handled in order with the others of the same player.
+     *
+     * @return the messages to {@link #handle}, empty if there is nothing to do
+     */
+    List<DataManagerMessage<?>> decode(byte[] data) {
+        // Our own messages are only interesting for the network state mirror, binary ones can be skipped undecoded.
+        if (plugin.getNetworkState() == null && DataMessageCodec.isBinary(data) && DataMessageCodec.isFrom(data, serverId))
+            return Collections.emptyList();
+
+        DataManagerMessage<?> message;
+        try {
+            message = DataMessageCodec.decode(data);
+        } catch (RuntimeException e) {
+            plugin.getLogger().error("Unable to decode data message", e);
+            return Collections.emptyList();
+        }
 
-        // Partially deserialize the message so we can look at the action
-        JsonObject jsonObject = parser.parse(event.getMessage()).getAsJsonObject();
+        if (message.getAction() != DataManagerMessage.Action.BULK_LEAVE)
+            return Collections.singletonList(message);
 
+        BulkLogoutPayload bulk = (BulkLogoutPayload) message.getPayload();
+        LogoutPayload payload = new LogoutPayload(bulk.getTimestamp());
+        List<DataManagerMessage<?>> messages = new ArrayList<>(bulk.getPlayers().size());
+        for (BulkLogoutPayload.Target target : bulk.getPlayers()) {
+            messages.add(new DataManagerMessage<>(target.getTarget(), message.getSource(), DataManagerMessage.Action.LEAVE, target.getSequence(), payload));
+        }
+        return messages;
+    }
 
-        if (jsonObject.get("source").getAsString().equals(RedisVelocity.getConfiguration().getServerId()))
+    @SuppressWarnings("unchecked")
+    void handle(DataManagerMessage<?> message) {
+        NetworkState networkState = plugin.getNetworkState();
+        boolean self = message.getSource().equals(RedisVelocity.getConfiguration().getServerId());
+        if (self && networkState == null)
             return;
 
-        DataManagerMessage.Action action = DataManagerMessage.Action.valueOf(jsonObject.get("action").getAsString());
-
-        switch (action) {
+        switch (message.getAction()) {
             case JOIN -> {
-                final DataManagerMessage<LoginPayload> message1 = RedisVelocity.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LoginPayload>>() {
-                }.getType());
-                proxyCache.put(message1.getTarget(), message1.getSource());
-                lastOnlineCache.put(message1.getTarget(), (long) 0);
-                ipCache.put(message1.getTarget(), message1.getPayload().getAddress());
-                plugin.getServer().getScheduler().buildTask(plugin, () -> plugin.getServer().getEventManager().fire(new PlayerJoinedNetworkEvent(message1.getTarget()))).schedule();
+                final DataManagerMessage<LoginPayload> message1 = (DataManagerMessage<LoginPayload>) message;
+                if (networkState != null)
+                    networkState.apply(message1);
+                if (self)
+                    return;
+                plugin.getUuidTranslator().addKnown(message1.getPayload().getName(), message1.getTarget());
+                // The player isn't on a server yet, their SERVER_CHANGE message follows.
+                putRecord(message1.getTarget(), new PlayerRecord(null, message1.getSource(), message1.getPayload().getAddress(), 0));
+                unknownCache.invalidate(message1.getTarget());
+                // Waited for, so the events of a player are fired in order as well.
+                plugin.getServer().getEventManager().fire(new PlayerJoinedNetworkEvent(message1.getTarget())).join();
             }
             case LEAVE -> {
-                final DataManagerMessage<LogoutPayload> message2 = RedisVelocity.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<LogoutPayload>>() {
-                }.getType());
-                invalidate(message2.getTarget());
-                lastOnlineCache.put(message2.getTarget(), message2.getPayload().getTimestamp());
-                plugin.getServer().getScheduler().buildTask(plugin, () -> plugin.getServer().getEventManager()
-                        .fire(new PlayerLeftNetworkEvent(message2.getTarget()))).schedule();
+                final DataManagerMessage<LogoutPayload> message2 = (DataManagerMessage<LogoutPayload>) message;
+                if (networkState != null)
+                    networkState.apply(message2);
+                if (self)
+                    return;
+                putRecord(message2.getTarget(), new PlayerRecord(null, null, null, message2.getPayload().getTimestamp()));
+                unknownCache.invalidate(message2.getTarget());
+                plugin.getServer().getEventManager().fire(new PlayerLeftNetworkEvent(message2.getTarget())).join();
             }
             case SERVER_CHANGE -> {
-                final DataManagerMessage<ServerChangePayload> message3 = RedisVelocity.getGson().fromJson(jsonObject, new TypeToken<DataManagerMessage<ServerChangePayload>>() {
-                }.getType());
-                serverCache.put(message3.getTarget(), message3.getPayload().getServer());
-                plugin.getServer().getScheduler().buildTask(plugin, () -> plugin.getServer().getEventManager().fire(new PlayerChangedServerNetworkEvent(message3.getTarget(), message3.getPayload().getOldServer(), message3.getPayload().getServer()))).schedule();
+                final DataManagerMessage<ServerChangePayload> message3 = (DataManagerMessage<ServerChangePayload>) message;
+                if (networkState != null)
+                    networkState.apply(message3);
+                if (self)
+                    return;
+                PlayerRecord record = getCachedRecord(message3.getTarget());
+                if (record != null && record != UNKNOWN)
+                    putRecord(message3.getTarget(), record.withServer(message3.getPayload().getServer()));
+                plugin.getServer().getEventManager().fire(new PlayerChangedServerNetworkEvent(message3.getTarget(), message3.getPayload().getOldServer(), message3.getPayload().getServer())).join();
             }
+            case BULK_LEAVE -> throw new IllegalArgumentException("BULK_LEAVE must be split up by decode");
         }
     }
 
-    @Getter
     @RequiredArgsConstructor
+    private static class StampedRecord {
+        private final PlayerRecord record;
+        private final long generation;
+    }
+
+    @Getter
+    @AllArgsConstructor
     static class DataManagerMessage<T> {
         private final UUID target;
-        private final String source = RedisVelocityAPI.getRedisVelocityApi().getServerId();
+        private final String source;
         private final Action action; // for future use!
+        /**
+         * Per-player sequence number, see {@link RedisUtil#nextSequence}. Messages from
+         * older versions don't carry one and deserialize to 0.
+         */
+        private final long sequence;
         private final T payload;
 
+        DataManagerMessage(UUID target, Action action, long sequence, T payload) {
+            this(target, RedisVelocityAPI.getRedisVelocityApi().getServerId(), action, sequence, payload);
+        }
+
+        /**
+         * The binary format refers to actions by their ordinal, so new ones go at the end.
+         */
         enum Action {
             JOIN,
             LEAVE,
-            SERVER_CHANGE
+            SERVER_CHANGE,
+            /**
+             * Published by {@code cleanup_proxy.lua} for a batch of players of a proxy that was
+             * cleaned up at once, has no target.
+             */
+            BULK_LEAVE
         }
     }
 
@@ -217,6 +418,10 @@ public class DataManager  {
     @RequiredArgsConstructor
     static class LoginPayload {
         private final InetAddress address;
+        /**
+         * Lets other proxies know the name is stored, older versions don't send it.
+         */
+        private final String name;
     }
 
     @Getter
@@ -231,4 +436,18 @@ public class DataManager  {
     static class LogoutPayload {
         private final long timestamp;
     }
+
+    @Getter
+    @RequiredArgsConstructor
+    static class BulkLogoutPayload {
+        private final long timestamp;
+        private final List<Target> players;
+
+        @Getter
+        @RequiredArgsConstructor
+        static class Target {
+            private final UUID target;
+            private final long sequence;
+        }
+    }
 }
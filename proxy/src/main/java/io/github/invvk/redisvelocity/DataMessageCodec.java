@@ -0,0 +1,199 @@
+package io.github.invvk.redisvelocity;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes and decodes the messages on {@code redisvelocity-data}. Binary messages start with a fixed header, so
+ * a receiver can tell who sent one without decoding the rest:
+ * <pre>
+ *   0  0xB7, which JSON never starts with, so the JSON messages of older versions are still told apart
+ *   1  format version
+ *   2  action
+ *   3  length of the source proxy ID, 2 bytes
+ *   5  source proxy ID in UTF-8
+ * </pre>
+ * It is followed by the sequence number, the target UUID as two longs (both 0 for none) and the payload of the
+ * action. Strings are prefixed with their length as 2 bytes, -1 for null.
+ */
+final class DataMessageCodec {
+    static final byte[] CHANNEL = "redisvelocity-data".getBytes(StandardCharsets.UTF_8);
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    // Proxy and server names come up in nearly every message, so each one is only turned into a String once.
+    private static final int MAX_INTERNED = 4096;
+    private static final Map<ByteBuffer, String> interned = new ConcurrentHashMap<>();
+    private static final JsonParser parser = new JsonParser();
+
+    private DataMessageCodec() {
+    }
+
+    static boolean isBinary(byte[] data) {
+        return data.length >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+    /**
+     * Compares the source in the header of a binary message, without decoding anything else.
+     *
+     * @param source the ID of the proxy in UTF-8
+     */
+    static boolean isFrom(byte[] data, byte[] source) {
+        int length = (data[3] << 8) | (data[4] & 0xFF);
+        return length == source.length && data.length >= HEADER_SIZE + length
+                && Arrays.equals(data, HEADER_SIZE, HEADER_SIZE + length, source, 0, length);
+    }
+
+    static byte[] encode(DataManager.DataManagerMessage<?> message) {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(message.getAction().ordinal());
+        writeString(out, message.getSource());
+        out.writeLong(message.getSequence());
+        writeUuid(out, message.getTarget());
+        switch (message.getAction()) {
+            case JOIN -> {
+                DataManager.LoginPayload payload = (DataManager.LoginPayload) message.getPayload();
+                byte[] address = payload.getAddress() == null ? new byte[0] : payload.getAddress().getAddress();
+                out.writeByte(address.length);
+                out.write(address);
+                writeString(out, payload.getName());
+            }
+            case LEAVE -> out.writeLong(((DataManager.LogoutPayload) message.getPayload()).getTimestamp());
+            case SERVER_CHANGE -> {
+                DataManager.ServerChangePayload payload = (DataManager.ServerChangePayload) message.getPayload();
+                writeString(out, payload.getServer());
+                writeString(out, payload.getOldServer());
+            }
+            case BULK_LEAVE -> {
+                DataManager.BulkLogoutPayload payload = (DataManager.BulkLogoutPayload) message.getPayload();
+                out.writeLong(payload.getTimestamp());
+                out.writeInt(payload.getPlayers().size());
+                for (DataManager.BulkLogoutPayload.Target target : payload.getPlayers()) {
+                    writeUuid(out, target.getTarget());
+                    out.writeLong(target.getSequence());
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a binary message, or a JSON one as sent by older versions and {@code cleanup_proxy.lua}.
+     *
+     * @throws IllegalArgumentException if the message is of a newer format version
+     */
+    static DataManager.DataManagerMessage<?> decode(byte[] data) {
+        if (!isBinary(data))
+            return fromJson(new String(data, StandardCharsets.UTF_8));
+        if (data[1] != VERSION)
+            throw new IllegalArgumentException("Unsupported data message version " + data[1]);
+
+        ByteBuffer in = ByteBuffer.wrap(data);
+        in.position(2);
+        DataManager.DataManagerMessage.Action action = DataManager.DataManagerMessage.Action.values()[in.get()];
+        String source = readString(in, true);
+        long sequence = in.getLong();
+        UUID target = readUuid(in);
+        Object payload = switch (action) {
+            case JOIN -> {
+                byte[] address = new byte[in.get()];
+                in.get(address);
+                yield new DataManager.LoginPayload(toAddress(address), readString(in, false));
+            }
+            case LEAVE -> new DataManager.LogoutPayload(in.getLong());
+            case SERVER_CHANGE -> new DataManager.ServerChangePayload(readString(in, true), readString(in, true));
+            case BULK_LEAVE -> {
+                long timestamp = in.getLong();
+                int size = in.getInt();
+                List<DataManager.BulkLogoutPayload.Target> players = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    players.add(new DataManager.BulkLogoutPayload.Target(readUuid(in), in.getLong()));
+                }
+                yield new DataManager.BulkLogoutPayload(timestamp, players);
+            }
+        };
+        return new DataManager.DataManagerMessage<>(target, source, action, sequence, payload);
+    }
+
+    private static DataManager.DataManagerMessage<?> fromJson(String json) {
+        // Partially deserialize the message so we can look at the action
+        JsonObject jsonObject = parser.parse(json).getAsJsonObject();
+        DataManager.DataManagerMessage.Action action = DataManager.DataManagerMessage.Action.valueOf(jsonObject.get("action").getAsString());
+        return switch (action) {
+            case JOIN -> RedisVelocity.getGson().fromJson(jsonObject, new TypeToken<DataManager.DataManagerMessage<DataManager.LoginPayload>>() {
+            }.getType());
+            case LEAVE -> RedisVelocity.getGson().fromJson(jsonObject, new TypeToken<DataManager.DataManagerMessage<DataManager.LogoutPayload>>() {
+            }.getType());
+            case SERVER_CHANGE -> RedisVelocity.getGson().fromJson(jsonObject, new TypeToken<DataManager.DataManagerMessage<DataManager.ServerChangePayload>>() {
+            }.getType());
+            case BULK_LEAVE -> RedisVelocity.getGson().fromJson(jsonObject, new TypeToken<DataManager.DataManagerMessage<DataManager.BulkLogoutPayload>>() {
+            }.getType());
+        };
+    }
+
+    private static InetAddress toAddress(byte[] address) {
+        if (address.length == 0)
+            return null;
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address in data message", e);
+        }
+    }
+
+    private static void writeString(ByteArrayDataOutput out, String string) {
+        if (string == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in, boolean intern) {
+        int length = in.getShort();
+        if (length == -1)
+            return null;
+        int start = in.position();
+        in.position(start + length);
+        if (!intern)
+            return new String(in.array(), start, length, StandardCharsets.UTF_8);
+
+        String string = interned.get(ByteBuffer.wrap(in.array(), start, length));
+        if (string == null) {
+            byte[] bytes = Arrays.copyOfRange(in.array(), start, start + length);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            if (interned.size() < MAX_INTERNED)
+                interned.put(ByteBuffer.wrap(bytes), string);
+        }
+        return string;
+    }
+
+    private static void writeUuid(ByteArrayDataOutput out, UUID uuid) {
+        out.writeLong(uuid == null ? 0 : uuid.getMostSignificantBits());
+        out.writeLong(uuid == null ? 0 : uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(ByteBuffer in) {
+        long most = in.getLong();
+        long least = in.getLong();
+        return most == 0 && least == 0 ? null : new UUID(most, least);
+    }
+}
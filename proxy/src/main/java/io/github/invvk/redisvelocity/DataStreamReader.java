@@ -0,0 +1,109 @@
+package io.github.invvk.redisvelocity;
+
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.SafeEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the messages of {@code redisvelocity-data} from a Redis stream instead of PubSub, when data-stream is
+ * enabled. Messages are appended with XADD and the stream is trimmed to about data-stream-length entries.
+ * <p>
+ * The ID of the last message read is kept, so after a lost connection reading continues right after it and
+ * nothing sent in the meantime is missed. Only if the stream was trimmed past that message in the meantime, the
+ * network state mirror and cached records are resynced instead.
+ */
+class DataStreamReader implements Runnable {
+    static final String KEY = "redisvelocity-data-stream";
+    static final byte[] KEY_BYTES = KEY.getBytes(StandardCharsets.UTF_8);
+    static final byte[] FIELD = "m".getBytes(StandardCharsets.UTF_8);
+    private static final String BATCH_SIZE = "500";
+    private static final String BLOCK_MILLIS = "1000";
+    private final RedisVelocity plugin;
+    private volatile boolean running = true;
+    // Only used by the reader thread.
+    private String lastId;
+
+    DataStreamReader(RedisVelocity plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try (Jedis jedis = plugin.getPool().getResource()) {
+                if (lastId == null)
+                    lastId = latestId(jedis);
+                else if (missedMessages(jedis))
+                    plugin.recoverMissedDataMessages();
+
+                // XREAD only answers after up to BLOCK_MILLIS, on top of the usual time Redis takes.
+                Connection connection = jedis.getConnection();
+                int timeout = connection.getSoTimeout();
+                if (timeout > 0)
+                    connection.setSoTimeout(timeout + Integer.parseInt(BLOCK_MILLIS));
+                try {
+                    while (running) {
+                        Object reply = jedis.sendCommand(Protocol.Command.XREAD, "COUNT", BATCH_SIZE, "BLOCK", BLOCK_MILLIS,
+                                "STREAMS", KEY, lastId);
+                        if (reply != null)
+                            read((List<?>) reply);
+                    }
+                } finally {
+                    if (!connection.isBroken())
+                        connection.setSoTimeout(timeout);
+                }
+            } catch (JedisException e) {
+                if (!running)
+                    return;
+                plugin.getLogger().warn("Unable to read the data stream, trying again in 5 seconds.", e);
+                try {
+                    TimeUnit.SECONDS.sleep(5);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // The reply holds one stream, with a list of [id, [field, value, ...]] entries.
+    private void read(List<?> reply) {
+        for (Object stream : reply) {
+            for (Object item : (List<?>) ((List<?>) stream).get(1)) {
+                List<?> entry = (List<?>) item;
+                lastId = SafeEncoder.encode((byte[]) entry.get(0));
+                List<?> fields = (List<?>) entry.get(1);
+                for (int i = 0; i + 1 < fields.size(); i += 2) {
+                    if (Arrays.equals((byte[]) fields.get(i), FIELD))
+                        plugin.onDataMessage((byte[]) fields.get(i + 1));
+                }
+            }
+        }
+    }
+
+    private static String latestId(Jedis jedis) {
+        List<?> entries = (List<?>) jedis.sendCommand(Protocol.Command.XREVRANGE, KEY, "+", "-", "COUNT", "1");
+        return entries.isEmpty() ? "0-0" : SafeEncoder.encode((byte[]) ((List<?>) entries.get(0)).get(0));
+    }
+
+    /**
+     * @return true if the last message read was trimmed from the stream, so anything after it may have been as well
+     */
+    private boolean missedMessages(Jedis jedis) {
+        if (lastId.equals("0-0"))
+            return false;
+        List<?> entries = (List<?>) jedis.sendCommand(Protocol.Command.XRANGE, KEY, lastId, "+", "COUNT", "1");
+        // Nothing at or after it means nothing was added since, trimming always keeps the newest messages.
+        return !entries.isEmpty() && !SafeEncoder.encode((byte[]) ((List<?>) entries.get(0)).get(0)).equals(lastId);
+    }
+
+    void stop() {
+        running = false;
+    }
+}
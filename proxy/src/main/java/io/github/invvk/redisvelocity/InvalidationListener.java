@@ -0,0 +1,94 @@
+package io.github.invvk.redisvelocity;
+
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the player record cache of {@link DataManager} in sync with Redis using server-assisted client side caching.
+ * <p>
+ * One connection enables {@code CLIENT TRACKING} in broadcasting mode for the {@code player:} prefix, redirecting
+ * the invalidations to a second connection subscribed to {@code __redis__:invalidate}. Redis then reports every
+ * change to a player hash, including writes that are not announced on {@code redisvelocity-data}.
+ * Jedis can't read RESP3 push messages, so the RESP2 invalidation messages are read from the connection directly.
+ */
+class InvalidationListener implements Runnable {
+    private final RedisVelocity plugin;
+    private volatile boolean stopped;
+    private volatile Jedis subscriber;
+
+    InvalidationListener(RedisVelocity plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try (Jedis subscriber = plugin.getPool().getResource(); Jedis tracker = plugin.getPool().getResource()) {
+                this.subscriber = subscriber;
+                Connection connection = subscriber.getConnection();
+                connection.sendCommand(Protocol.Command.SUBSCRIBE, "__redis__:invalidate");
+                connection.getObjectMultiBulkReply();
+                // Invalidations only arrive when players change, so the connection may be idle for a long time.
+                connection.setTimeoutInfinite();
+                tracker.sendCommand(Protocol.Command.CLIENT, "TRACKING", "on", "REDIRECT",
+                        String.valueOf(subscriber.clientId()), "BCAST", "PREFIX", "player:");
+                try {
+                    // Anything cached before tracking started may already be stale.
+                    plugin.getDataManager().invalidateAll();
+                    while (!stopped) {
+                        onMessage(connection.getObjectMultiBulkReply());
+                    }
+                } finally {
+                    tracker.sendCommand(Protocol.Command.CLIENT, "TRACKING", "off");
+                }
+            } catch (Exception e) {
+                if (stopped)
+                    return;
+                plugin.getDataManager().invalidateAll();
+                plugin.getLogger().error("Lost the cache invalidation connection, reconnecting in 5 seconds.", e);
+                try {
+                    TimeUnit.SECONDS.sleep(5);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onMessage(List<Object> reply) {
+        if (reply.size() < 3 || !"message".equals(new String((byte[]) reply.get(0), StandardCharsets.UTF_8)))
+            return;
+        Object keys = reply.get(2);
+        if (!(keys instanceof List)) {
+            // Sent without keys when the database was flushed.
+            plugin.getDataManager().invalidateAll();
+            return;
+        }
+        for (Object key : (List<Object>) keys) {
+            String name = new String((byte[]) key, StandardCharsets.UTF_8);
+            try {
+                plugin.getDataManager().invalidate(UUID.fromString(name.substring("player:".length())));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ignored) {
+            }
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        Jedis subscriber = this.subscriber;
+        if (subscriber != null) {
+            try {
+                subscriber.getConnection().disconnect();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+}
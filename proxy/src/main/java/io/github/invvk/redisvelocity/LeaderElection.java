@@ -0,0 +1,64 @@
+package io.github.invvk.redisvelocity;
+
+import com.google.common.collect.ImmutableList;
+import io.github.invvk.redisvelocity.util.LuaManager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elects one proxy of the network to run network-wide maintenance, such as cleaning up lagged proxies.
+ * <p>
+ * The leader holds the {@code redisvelocity-leader} key, set with NX and a lease that it renews while it
+ * is alive. Each term gets a fencing token from {@code redisvelocity-leader-token}. Scripts that must
+ * only run on the leader compare it with the latest token, so a leader that lost its lease without
+ * noticing (e.g. during a long GC pause) can't act anymore.
+ */
+class LeaderElection {
+    private final RedisVelocity plugin;
+    private final LuaManager.Script script;
+    private final long leaseMillis;
+    private volatile long token;
+    private volatile long leaseDeadline;
+
+    LeaderElection(RedisVelocity plugin, LuaManager.Script script, long leaseMillis) {
+        this.plugin = plugin;
+        this.script = script;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Renews our lease if we are the leader, or tries to become the leader otherwise.
+     * Should run a few times per lease.
+     */
+    void tick() {
+        long started = System.nanoTime();
+        long result = (Long) script.eval(ImmutableList.of(), ImmutableList.of(
+                RedisVelocity.getConfiguration().getServerId(), String.valueOf(leaseMillis), String.valueOf(token)));
+        if (result != 0 && token == 0)
+            plugin.getLogger().info("This proxy is now the leader (token " + result + ").");
+        else if (result == 0 && token != 0)
+            plugin.getLogger().info("This proxy is no longer the leader.");
+        // Measured from before the call, so we stop acting before the lease ran out in Redis.
+        leaseDeadline = started + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        token = result;
+    }
+
+    void release() {
+        if (token == 0)
+            return;
+        script.eval(ImmutableList.of(), ImmutableList.of(
+                RedisVelocity.getConfiguration().getServerId(), "0", String.valueOf(token)));
+        token = 0;
+    }
+
+    boolean isLeader() {
+        return token != 0 && System.nanoTime() - leaseDeadline < 0;
+    }
+
+    /**
+     * @return the fencing token of our current term, or 0 if we are not the leader
+     */
+    long getToken() {
+        return isLeader() ? token : 0;
+    }
+}
@@ -0,0 +1,252 @@
+package io.github.invvk.redisvelocity;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multimap;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory mirror of where every player on the network is, kept current from the
+ * JOIN, LEAVE and SERVER_CHANGE messages on {@code redisvelocity-data}.
+ * <p>
+ * The mirror is bootstrapped from a Redis snapshot and resynced whenever the PubSub connection
+ * was lost, as well as periodically. Messages carry a per-player sequence number, so a message
+ * that arrives after a newer one for the same player is ignored.
+ */
+class NetworkState {
+    private final RedisVelocity plugin;
+    private final Map<UUID, PlayerState> players = new ConcurrentHashMap<>();
+    // Counted per proxy, so the players of proxies that stopped sending heartbeats can be left out.
+    private final Map<String, Integer> proxyCounts = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Integer>> serverCounts = new ConcurrentHashMap<>();
+    // Sequence numbers of players that left recently, so late JOINs don't bring them back.
+    private final Cache<UUID, Long> departed = CacheBuilder.newBuilder()
+            .expireAfterWrite(5, TimeUnit.MINUTES)
+            .build();
+    // Messages received while a resync is running, replayed on top of the snapshot.
+    private List<DataManager.DataManagerMessage<?>> journal;
+    @Getter
+    private volatile boolean ready;
+
+    NetworkState(RedisVelocity plugin) {
+        this.plugin = plugin;
+    }
+
+    synchronized void apply(DataManager.DataManagerMessage<?> message) {
+        if (journal != null)
+            journal.add(message);
+        PlayerState previous = players.get(message.getTarget());
+        apply(players, departed.asMap(), message);
+        PlayerState current = players.get(message.getTarget());
+        if (previous != current) {
+            count(previous, -1);
+            count(current, 1);
+        }
+    }
+
+    private void count(PlayerState state, int delta) {
+        if (state == null)
+            return;
+        proxyCounts.merge(state.getProxy(), delta, NetworkState::sumOrRemove);
+        if (state.getServer() != null) {
+            serverCounts.compute(state.getServer(), (server, counts) -> {
+                if (counts == null)
+                    counts = new ConcurrentHashMap<>();
+                counts.merge(state.getProxy(), delta, NetworkState::sumOrRemove);
+                return counts.isEmpty() ? null : counts;
+            });
+        }
+    }
+
+    private static Integer sumOrRemove(Integer a, Integer b) {
+        int sum = a + b;
+        return sum == 0 ? null : sum;
+    }
+
+    /**
+     * @param departed the sequence numbers of players that left, the live cache or, when replaying the journal
+     *                 on a snapshot, one of the snapshot's own
+     */
+    private static void apply(Map<UUID, PlayerState> players, Map<UUID, Long> departed,
+                              DataManager.DataManagerMessage<?> message) {
+        UUID uuid = message.getTarget();
+        long sequence = message.getSequence();
+
+        if (sequence > 0) {
+            PlayerState current = players.get(uuid);
+            Long left = departed.get(uuid);
+            long known = Math.max(current == null ? 0 : current.getSequence(), left == null ? 0 : left);
+            if (sequence <= known)
+                return;
+        }
+
+        switch (message.getAction()) {
+            case JOIN -> players.put(uuid, new PlayerState(message.getSource(), null, sequence));
+            case LEAVE -> {
+                players.remove(uuid);
+                if (sequence > 0)
+                    departed.put(uuid, sequence);
+            }
+            case SERVER_CHANGE -> {
+                DataManager.ServerChangePayload payload = (DataManager.ServerChangePayload) message.getPayload();
+                players.put(uuid, new PlayerState(message.getSource(), payload.getServer(), sequence));
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the mirror from the proxy sets and player hashes in Redis. Messages received while the
+     * snapshot is being read are replayed on top of it afterwards, checked against the snapshot alone: a LEAVE
+     * that was already applied live must still remove the player from the snapshot.
+     */
+    void resync() {
+        synchronized (this) {
+            journal = new ArrayList<>();
+        }
+
+        Map<UUID, PlayerState> snapshot = new HashMap<>();
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            List<String> proxies = plugin.getServerIds();
+            Pipeline pipeline = jedis.pipelined();
+            Map<String, Response<Set<String>>> members = new HashMap<>();
+            for (String proxy : proxies) {
+                members.put(proxy, pipeline.smembers("proxy:" + proxy + ":usersOnline"));
+            }
+            pipeline.sync();
+
+            Map<UUID, Response<List<String>>> data = new HashMap<>();
+            pipeline = jedis.pipelined();
+            for (Response<Set<String>> response : members.values()) {
+                for (String member : response.get()) {
+                    UUID uuid;
+                    try {
+                        uuid = UUID.fromString(member);
+                    } catch (IllegalArgumentException ignored) {
+                        continue;
+                    }
+                    data.put(uuid, pipeline.hmget("player:" + member, "server", "seq", "proxy"));
+                }
+            }
+            pipeline.sync();
+
+            for (Map.Entry<UUID, Response<List<String>>> entry : data.entrySet()) {
+                List<String> fields = entry.getValue().get();
+                // The player left between SMEMBERS and HMGET, the hash no longer has their proxy and server.
+                if (fields.get(2) == null)
+                    continue;
+                long sequence = 0;
+                if (fields.get(1) != null) {
+                    try {
+                        sequence = Long.parseLong(fields.get(1));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                snapshot.put(entry.getKey(), new PlayerState(fields.get(2), fields.get(0), sequence));
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                journal = null;
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            Map<UUID, Long> snapshotDeparted = new HashMap<>();
+            for (DataManager.DataManagerMessage<?> message : journal) {
+                apply(snapshot, snapshotDeparted, message);
+            }
+            journal = null;
+            departed.putAll(snapshotDeparted);
+            players.keySet().retainAll(snapshot.keySet());
+            players.putAll(snapshot);
+            proxyCounts.clear();
+            serverCounts.clear();
+            for (PlayerState state : players.values()) {
+                count(state, 1);
+            }
+            ready = true;
+        }
+    }
+
+    int getPlayerCount() {
+        int count = 0;
+        for (String proxy : plugin.getServerIds()) {
+            count += proxyCounts.getOrDefault(proxy, 0);
+        }
+        return count;
+    }
+
+    int getPlayerCountOnProxy(String proxy) {
+        return proxyCounts.getOrDefault(proxy, 0);
+    }
+
+    int getPlayerCountOnServer(String server) {
+        Map<String, Integer> counts = serverCounts.get(server);
+        if (counts == null)
+            return 0;
+        int count = 0;
+        for (String proxy : plugin.getServerIds()) {
+            count += counts.getOrDefault(proxy, 0);
+        }
+        return count;
+    }
+
+    Set<UUID> getPlayers() {
+        Set<String> proxies = new HashSet<>(plugin.getServerIds());
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+        for (Map.Entry<UUID, PlayerState> entry : players.entrySet()) {
+            if (proxies.contains(entry.getValue().getProxy()))
+                builder.add(entry.getKey());
+        }
+        return builder.build();
+    }
+
+    Set<UUID> getPlayersOnProxy(String proxy) {
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+        for (Map.Entry<UUID, PlayerState> entry : players.entrySet()) {
+            if (proxy.equals(entry.getValue().getProxy()))
+                builder.add(entry.getKey());
+        }
+        return builder.build();
+    }
+
+    Set<UUID> getPlayersOnServer(String server) {
+        Set<String> proxies = new HashSet<>(plugin.getServerIds());
+        ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+        for (Map.Entry<UUID, PlayerState> entry : players.entrySet()) {
+            PlayerState state = entry.getValue();
+            if (server.equals(state.getServer()) && proxies.contains(state.getProxy()))
+                builder.add(entry.getKey());
+        }
+        return builder.build();
+    }
+
+    Multimap<String, UUID> getServerToPlayers() {
+        Set<String> proxies = new HashSet<>(plugin.getServerIds());
+        ImmutableMultimap.Builder<String, UUID> builder = ImmutableMultimap.builder();
+        for (Map.Entry<UUID, PlayerState> entry : players.entrySet()) {
+            PlayerState state = entry.getValue();
+            if (state.getServer() != null && proxies.contains(state.getProxy()))
+                builder.put(state.getServer(), entry.getKey());
+        }
+        return builder.build();
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class PlayerState {
+        private final String proxy;
+        private final String server;
+        private final long sequence;
+    }
+}
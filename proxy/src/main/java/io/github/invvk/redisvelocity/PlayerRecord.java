@@ -0,0 +1,53 @@
+package io.github.invvk.redisvelocity;
+
+import com.google.common.net.InetAddresses;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import java.net.InetAddress;
+import java.util.Map;
+
+/**
+ * A snapshot of what RedisVelocity knows about a player, read from their {@code player:<uuid>} hash in one call.
+ * Records are immutable, updates received from the network replace the cached record.
+ *
+ * @since 2.0.1
+ */
+@Getter
+@ToString
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public final class PlayerRecord {
+    /**
+     * The server the player is on, or null if they are offline or not connected to a server yet.
+     */
+    private final String server;
+    /**
+     * The proxy the player is connected to, or null if they are offline.
+     */
+    private final String proxy;
+    /**
+     * The address the player connected from, or null if they are offline.
+     */
+    private final InetAddress ip;
+    /**
+     * 0 if the player is online, -1 if this was never recorded, otherwise the time they went offline in milliseconds.
+     */
+    private final long lastOnline;
+
+    public boolean isOnline() {
+        return lastOnline == 0;
+    }
+
+    PlayerRecord withServer(String server) {
+        return new PlayerRecord(server, proxy, ip, lastOnline);
+    }
+
+    static PlayerRecord fromHash(Map<String, String> hash) {
+        String ip = hash.get("ip");
+        String online = hash.get("online");
+        return new PlayerRecord(hash.get("server"), hash.get("proxy"),
+                ip == null ? null : InetAddresses.forString(ip), online == null ? -1 : Long.parseLong(online));
+    }
+}
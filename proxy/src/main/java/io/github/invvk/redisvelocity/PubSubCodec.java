@@ -0,0 +1,63 @@
+package io.github.invvk.redisvelocity;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns the messages of a PubSub channel into objects and back, see
+ * {@link RedisVelocityAPI#registerPubSubHandler(String, PubSubCodec, PubSubHandler, java.util.concurrent.Executor)}.
+ *
+ * @param <T> the type of the messages
+ * @since 2.0.1
+ */
+public interface PubSubCodec<T> {
+    /**
+     * Messages as UTF-8 text, as sent by {@link RedisVelocityAPI#sendChannelMessage(String, String)}.
+     */
+    PubSubCodec<String> STRING = new PubSubCodec<>() {
+        @Override
+        public byte[] encode(String message) {
+            return message.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] message) {
+            return new String(message, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Messages exactly as they were sent.
+     */
+    PubSubCodec<byte[]> BYTES = new PubSubCodec<>() {
+        @Override
+        public byte[] encode(byte[] message) {
+            return message;
+        }
+
+        @Override
+        public byte[] decode(byte[] message) {
+            return message;
+        }
+    };
+
+    /**
+     * Messages as JSON, using the Gson instance of RedisVelocity.
+     */
+    static <T> PubSubCodec<T> json(Class<T> type) {
+        return new PubSubCodec<>() {
+            @Override
+            public byte[] encode(T message) {
+                return RedisVelocity.getGson().toJson(message).getBytes(StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public T decode(byte[] message) {
+                return RedisVelocity.getGson().fromJson(new String(message, StandardCharsets.UTF_8), type);
+            }
+        };
+    }
+
+    byte[] encode(T message);
+
+    T decode(byte[] message);
+}
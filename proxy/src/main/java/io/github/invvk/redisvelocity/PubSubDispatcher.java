@@ -0,0 +1,107 @@
+package io.github.invvk.redisvelocity;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handles PubSub messages off the subscriber thread, on a fixed number of lanes with a thread each.
+ * <p>
+ * Messages with the same key always go to the same lane and are handled in the order they arrived, so a
+ * LEAVE can't overtake the JOIN of the same player. Lanes drain their queue in batches. Each queue is bounded,
+ * a message that doesn't fit is dropped and counted.
+ */
+class PubSubDispatcher {
+    private static final int BATCH_SIZE = 64;
+    private final Logger logger;
+    private final Lane[] lanes;
+    private final List<Thread> threads = new ArrayList<>();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    PubSubDispatcher(Logger logger, int laneCount, int capacity) {
+        this.logger = logger;
+        this.lanes = new Lane[laneCount];
+        ThreadFactory factory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("redisvelocity-pubsub-%d")
+                .build();
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(capacity);
+            Thread thread = factory.newThread(lanes[i]);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param key what the order is kept for, the player or the channel
+     * @return false if the lane was full and the message was dropped
+     */
+    boolean dispatch(Object key, Runnable task) {
+        int hash = key.hashCode();
+        Lane lane = lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)];
+        if (lane.queue.offer(task))
+            return true;
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * @return the number of queued, handled and dropped messages, and the length of the longest queue
+     */
+    Map<String, Long> getStats() {
+        long queued = 0;
+        long longest = 0;
+        for (Lane lane : lanes) {
+            int size = lane.queue.size();
+            queued += size;
+            longest = Math.max(longest, size);
+        }
+        return ImmutableMap.of("queued", queued, "longest-queue", longest, "handled", handled.sum(), "dropped", dropped.sum());
+    }
+
+    void stop() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    private class Lane implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+
+        Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            List<Runnable> batch = new ArrayList<>(BATCH_SIZE);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                for (Runnable task : batch) {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        logger.error("Unable to handle PubSub message", e);
+                    }
+                }
+                handled.add(batch.size());
+                batch.clear();
+            }
+        }
+    }
+}
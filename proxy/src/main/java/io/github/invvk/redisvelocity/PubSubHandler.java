@@ -0,0 +1,16 @@
+package io.github.invvk.redisvelocity;
+
+/**
+ * Handles the messages of a PubSub channel or pattern, see
+ * {@link RedisVelocityAPI#registerPubSubHandler(String, PubSubCodec, PubSubHandler, java.util.concurrent.Executor)}.
+ *
+ * @param <T> the type of the messages, as decoded by the codec the handler was registered with
+ * @since 2.0.1
+ */
+@FunctionalInterface
+public interface PubSubHandler<T> {
+    /**
+     * @param channel the channel the message was sent to, also for handlers of a pattern
+     */
+    void handle(String channel, T message);
+}
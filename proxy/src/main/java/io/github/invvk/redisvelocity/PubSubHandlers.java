@@ -0,0 +1,188 @@
+package io.github.invvk.redisvelocity;
+
+import lombok.RequiredArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The handlers registered for PubSub channels and patterns. Looking up the handlers of a message doesn't lock,
+ * registering and unregistering does, since it decides when to subscribe and unsubscribe.
+ */
+class PubSubHandlers {
+    private final RedisVelocity plugin;
+    private final Map<String, List<Handler<?>>> channels = new ConcurrentHashMap<>();
+    private final Map<String, List<Handler<?>>> patterns = new ConcurrentHashMap<>();
+
+    PubSubHandlers(RedisVelocity plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * @param executor where the handler runs, or null for the PubSub dispatcher, keeping the order per channel
+     */
+    synchronized <T> PubSubRegistration register(String channel, boolean pattern, PubSubCodec<T> codec,
+                                                 PubSubHandler<T> handler, Executor executor) {
+        Map<String, List<Handler<?>>> handlers = pattern ? patterns : channels;
+        Handler<T> registered = new Handler<>(codec, handler, executor);
+        List<Handler<?>> list = handlers.get(channel);
+        if (list == null) {
+            list = new CopyOnWriteArrayList<>();
+            handlers.put(channel, list);
+            if (pattern)
+                RedisVelocity.getPubSubListener().addPattern(channel);
+            else
+                RedisVelocity.getPubSubListener().addHandlerChannel(channel);
+        }
+        list.add(registered);
+        return () -> unregister(channel, pattern, registered);
+    }
+
+    private synchronized void unregister(String channel, boolean pattern, Handler<?> registered) {
+        Map<String, List<Handler<?>>> handlers = pattern ? patterns : channels;
+        List<Handler<?>> list = handlers.get(channel);
+        if (list == null || !list.remove(registered) || !list.isEmpty())
+            return;
+        handlers.remove(channel);
+        if (pattern)
+            RedisVelocity.getPubSubListener().removePattern(channel);
+        else
+            RedisVelocity.getPubSubListener().removeHandlerChannel(channel);
+    }
+
+    boolean hasChannel(String channel) {
+        return channels.containsKey(channel);
+    }
+
+    void handle(String channel, byte[] message) {
+        List<Handler<?>> list = channels.get(channel);
+        if (list == null)
+            return;
+        for (Handler<?> handler : list) {
+            run(handler, channel, message);
+        }
+    }
+
+    void handlePattern(String pattern, String channel, byte[] message) {
+        List<Handler<?>> list = patterns.get(pattern);
+        if (list == null)
+            return;
+        for (Handler<?> handler : list) {
+            run(handler, channel, message);
+        }
+    }
+
+    private <T> void run(Handler<T> handler, String channel, byte[] message) {
+        Runnable task = () -> {
+            try {
+                handler.handler.handle(channel, handler.codec.decode(message));
+            } catch (Throwable e) {
+                plugin.getLogger().error("Unable to handle PubSub message on " + channel, e);
+            }
+        };
+        if (handler.executor == null) {
+            plugin.dispatchPubSub(channel, task);
+            return;
+        }
+        try {
+            handler.executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            plugin.getLogger().error("Unable to handle PubSub message on " + channel + ", the executor rejected it", e);
+        }
+    }
+
+    /**
+     * Matches a channel against a PSUBSCRIBE pattern the way Redis does: {@code *} and {@code ?} match any
+     * characters and any single character, {@code [...]} matches a set or range, negated by a leading {@code ^},
+     * and {@code \} escapes the next character.
+     */
+    static boolean matches(String pattern, String channel) {
+        return matches(pattern, 0, channel, 0);
+    }
+
+    private static boolean matches(String pattern, int p, String channel, int c) {
+        while (p < pattern.length()) {
+            char current = pattern.charAt(p);
+            switch (current) {
+                case '*' -> {
+                    while (p + 1 < pattern.length() && pattern.charAt(p + 1) == '*')
+                        p++;
+                    if (p + 1 == pattern.length())
+                        return true;
+                    for (int i = c; i <= channel.length(); i++) {
+                        if (matches(pattern, p + 1, channel, i))
+                            return true;
+                    }
+                    return false;
+                }
+                case '?' -> {
+                    if (c == channel.length())
+                        return false;
+                    c++;
+                }
+                case '[' -> {
+                    if (c == channel.length())
+                        return false;
+                    char ch = channel.charAt(c);
+                    p++;
+                    boolean not = p < pattern.length() && pattern.charAt(p) == '^';
+                    if (not)
+                        p++;
+                    boolean match = false;
+                    while (p < pattern.length() && pattern.charAt(p) != ']') {
+                        if (pattern.charAt(p) == '\\' && p + 1 < pattern.length()) {
+                            p++;
+                            if (pattern.charAt(p) == ch)
+                                match = true;
+                        } else if (p + 2 < pattern.length() && pattern.charAt(p + 1) == '-') {
+                            char start = pattern.charAt(p);
+                            char end = pattern.charAt(p + 2);
+                            if (start > end) {
+                                char swap = start;
+                                start = end;
+                                end = swap;
+                            }
+                            if (ch >= start && ch <= end)
+                                match = true;
+                            p += 2;
+                        } else if (pattern.charAt(p) == ch) {
+                            match = true;
+                        }
+                        p++;
+                    }
+                    // Like Redis, an unterminated set ends with the pattern.
+                    if (p == pattern.length())
+                        p--;
+                    if (match == not)
+                        return false;
+                    c++;
+                }
+                case '\\' -> {
+                    if (p + 1 < pattern.length())
+                        p++;
+                    if (c == channel.length() || pattern.charAt(p) != channel.charAt(c))
+                        return false;
+                    c++;
+                }
+                default -> {
+                    if (c == channel.length() || current != channel.charAt(c))
+                        return false;
+                    c++;
+                }
+            }
+            p++;
+        }
+        return c == channel.length();
+    }
+
+    @RequiredArgsConstructor
+    private static class Handler<T> {
+        private final PubSubCodec<T> codec;
+        private final PubSubHandler<T> handler;
+        private final Executor executor;
+    }
+}
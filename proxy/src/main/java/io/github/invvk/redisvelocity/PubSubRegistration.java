@@ -0,0 +1,15 @@
+package io.github.invvk.redisvelocity;
+
+/**
+ * A handler registered for a PubSub channel or pattern.
+ *
+ * @since 2.0.1
+ */
+@FunctionalInterface
+public interface PubSubRegistration {
+    /**
+     * Stops passing messages to the handler. The channel or pattern is unsubscribed from once nothing else needs it.
+     * Does nothing if the handler was already unregistered.
+     */
+    void unregister();
+}
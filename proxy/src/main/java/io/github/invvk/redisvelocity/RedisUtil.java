@@ -6,7 +6,11 @@ import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.XAddParams;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -14,13 +18,44 @@ import java.util.UUID;
 @VisibleForTesting
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class RedisUtil {
+    /**
+     * @deprecated the JOIN message needs the sequence number from the pipeline, use the variant returning it and
+     * publish the message once the pipeline is synced. If {@code fireEvent} is true, the message is published
+     * in the pipeline without a sequence number, so receivers can't order it.
+     */
+    @Deprecated
     protected static void createPlayer(Player player, Pipeline pipeline, boolean fireEvent) {
-        createPlayerA(player, pipeline, fireEvent);
-        if (player.getCurrentServer().isPresent())
-            pipeline.hset("player:" + player.getUniqueId().toString(), "server", player.getCurrentServer().get().getServer().getServerInfo().getName());
+        createPlayer(player, pipeline);
+        if (fireEvent)
+            publishJoin(player, pipeline);
     }
 
+    /**
+     * @deprecated see {@link #createPlayer(Player, Pipeline, boolean)}
+     */
+    @Deprecated
     protected static void createPlayerA(Player connection, Pipeline pipeline, boolean fireEvent) {
+        createPlayerA(connection, pipeline);
+        if (fireEvent)
+            publishJoin(connection, pipeline);
+    }
+
+    private static void publishJoin(Player player, Pipeline pipeline) {
+        publishData(pipeline, new DataManager.DataManagerMessage<>(player.getUniqueId(), DataManager.DataManagerMessage.Action.JOIN, 0,
+                new DataManager.LoginPayload(player.getRemoteAddress().getAddress(), player.getUsername())));
+    }
+
+    static Response<Long> createPlayer(Player player, Pipeline pipeline) {
+        Response<Long> sequence = createPlayerA(player, pipeline);
+        if (player.getCurrentServer().isPresent()) {
+            String server = player.getCurrentServer().get().getServer().getServerInfo().getName();
+            pipeline.hset("player:" + player.getUniqueId().toString(), "server", server);
+            addToServer(player.getUniqueId().toString(), server, pipeline);
+        }
+        return sequence;
+    }
+
+    static Response<Long> createPlayerA(Player connection, Pipeline pipeline) {
         Map<String, String> playerData = new HashMap<>(4);
         playerData.put("online", "0");
         playerData.put("ip", connection.getRemoteAddress().getAddress().getHostAddress());
@@ -28,36 +63,123 @@ public class RedisUtil {
 
         pipeline.sadd("proxy:" + RedisVelocityAPI.getRedisVelocityApi().getServerId() + ":usersOnline", connection.getUniqueId().toString());
         pipeline.hmset("player:" + connection.getUniqueId().toString(), playerData);
-
-        if (fireEvent) {
-            pipeline.publish("redisvelocity-data", RedisVelocity.getGson().toJson(new DataManager.DataManagerMessage<>(
-                    connection.getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
-                    new DataManager.LoginPayload(connection.getRemoteAddress().getAddress()))));
-        }
+        pipeline.hincrBy("player-counts", "proxy:" + RedisVelocity.getConfiguration().getServerId(), 1);
+        pipeline.hincrBy("player-counts", "total", 1);
+        pipeline.hincrBy("proxy-digests", RedisVelocity.getConfiguration().getServerId(), digest(connection.getUniqueId()));
+        return nextSequence(connection.getUniqueId().toString(), pipeline);
     }
 
     public static void cleanUpPlayer(String player, Jedis rsc) {
-        rsc.srem("proxy:" + RedisVelocityAPI.getRedisVelocityApi().getServerId() + ":usersOnline", player);
+        if (rsc.srem("proxy:" + RedisVelocityAPI.getRedisVelocityApi().getServerId() + ":usersOnline", player) > 0) {
+            rsc.hincrBy("player-counts", "proxy:" + RedisVelocityAPI.getRedisVelocityApi().getServerId(), -1);
+            rsc.hincrBy("player-counts", "total", -1);
+            rsc.hincrBy("proxy-digests", RedisVelocityAPI.getRedisVelocityApi().getServerId(), -digest(UUID.fromString(player)));
+        }
+        String server = rsc.hget("player:" + player, "server");
+        if (server != null && rsc.srem("server:" + server + ":usersOnline", player) > 0)
+            rsc.hincrBy("player-counts", "server:" + server, -1);
         rsc.hdel("player:" + player, "server", "ip", "proxy");
         long timestamp = System.currentTimeMillis();
         rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-        rsc.publish("redisvelocity-data", RedisVelocity.getGson().toJson(new DataManager.DataManagerMessage<>(
-                UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE,
-                new DataManager.LogoutPayload(timestamp))));
+        long sequence = rsc.hincrBy("player:" + player, "seq", 1);
+        publishData(rsc, new DataManager.DataManagerMessage<>(
+                UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE, sequence,
+                new DataManager.LogoutPayload(timestamp)));
     }
 
+    /**
+     * @deprecated the server of the player can't be read in a pipeline, so they stay in the player set of their
+     * server. The LEAVE message is published in the pipeline without a sequence number. Use
+     * {@link #cleanUpPlayer(String, Jedis)} instead.
+     */
+    @Deprecated
     public static void cleanUpPlayer(String player, Pipeline rsc) {
+        long timestamp = System.currentTimeMillis();
+        cleanUpPlayer(player, null, rsc, timestamp);
+        publishData(rsc, new DataManager.DataManagerMessage<>(UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE, 0,
+                new DataManager.LogoutPayload(timestamp)));
+    }
+
+    /**
+     * Queues the removal of a player in the given pipeline. The LEAVE message is not published here, since
+     * it needs the sequence number, which is only available once the pipeline has been synced.
+     *
+     * @param server the server the player was last on, or null if they were not on any
+     * @return the sequence number to publish the LEAVE message with
+     */
+    static Response<Long> cleanUpPlayer(String player, String server, Pipeline rsc, long timestamp) {
         rsc.srem("proxy:" + RedisVelocityAPI.getRedisVelocityApi().getServerId() + ":usersOnline", player);
+        rsc.hincrBy("player-counts", "proxy:" + RedisVelocityAPI.getRedisVelocityApi().getServerId(), -1);
+        rsc.hincrBy("player-counts", "total", -1);
+        rsc.hincrBy("proxy-digests", RedisVelocityAPI.getRedisVelocityApi().getServerId(), -digest(UUID.fromString(player)));
+        if (server != null) {
+            rsc.srem("server:" + server + ":usersOnline", player);
+            rsc.hincrBy("player-counts", "server:" + server, -1);
+        }
         rsc.hdel("player:" + player, "server", "ip", "proxy");
-        long timestamp = System.currentTimeMillis();
         rsc.hset("player:" + player, "online", String.valueOf(timestamp));
-        rsc.publish("redisvelocity-data", RedisVelocity.getGson().toJson(new DataManager.DataManagerMessage<>(
-                UUID.fromString(player), DataManager.DataManagerMessage.Action.LEAVE,
-                new DataManager.LogoutPayload(timestamp))));
+        return nextSequence(player, rsc);
+    }
+
+    /**
+     * Every state change of a player gets a sequence number, which is incremented in the player hash in the same
+     * pipeline as the change itself. Receivers use it to drop messages that arrive out of order.
+     */
+    static Response<Long> nextSequence(String player, Pipeline pipeline) {
+        return pipeline.hincrBy("player:" + player, "seq", 1);
+    }
+
+    /**
+     * Players are indexed per server in {@code server:<name>:usersOnline}, and every server name
+     * that was ever used is kept in {@code servers}, so a server to players mapping is a handful of SMEMBERS.
+     * <p>
+     * The sizes of these sets are also counted in the {@code player-counts} hash, next to the per-proxy and
+     * total counts. The counters drift if a pipeline is lost half-way, so they are reconciled periodically.
+     */
+    static void addToServer(String player, String server, Pipeline pipeline) {
+        pipeline.sadd("servers", server);
+        pipeline.sadd("server:" + server + ":usersOnline", player);
+        pipeline.hincrBy("player-counts", "server:" + server, 1);
+    }
+
+    /**
+     * Each proxy set has an order-independent digest in the {@code proxy-digests} hash: the sum of
+     * the digests of its members, kept current with HINCRBY. Comparing it with the same sum over the
+     * local players tells the integrity check whether the full set needs to be compared at all.
+     */
+    static long digest(UUID uuid) {
+        return uuid.hashCode();
+    }
+
+    static void publishData(Jedis jedis, DataManager.DataManagerMessage<?> message) {
+        RedisVelocityConfiguration configuration = RedisVelocity.getConfiguration();
+        byte[] data = encodeData(message);
+        if (configuration.isDataStream())
+            jedis.xadd(DataStreamReader.KEY_BYTES, streamParams(), Collections.singletonMap(DataStreamReader.FIELD, data));
+        else
+            jedis.publish(DataMessageCodec.CHANNEL, data);
+    }
+
+    private static void publishData(Pipeline pipeline, DataManager.DataManagerMessage<?> message) {
+        RedisVelocityConfiguration configuration = RedisVelocity.getConfiguration();
+        byte[] data = encodeData(message);
+        if (configuration.isDataStream())
+            pipeline.xadd(DataStreamReader.KEY_BYTES, streamParams(), Collections.singletonMap(DataStreamReader.FIELD, data));
+        else
+            pipeline.publish(DataMessageCodec.CHANNEL, data);
+    }
+
+    private static byte[] encodeData(DataManager.DataManagerMessage<?> message) {
+        return RedisVelocity.getConfiguration().isBinaryDataMessages() ? DataMessageCodec.encode(message)
+                : RedisVelocity.getGson().toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static XAddParams streamParams() {
+        return XAddParams.xAddParams().maxLen(RedisVelocity.getConfiguration().getDataStreamLength()).approximateTrimming();
     }
 
     public static boolean isRedisVersionRight(String redisVersion) {
-        // Need to use >=6.2 to use Lua optimizations.
+        // Need to use >=6.0, newer commands are avoided or fallen back from.
         String[] args = redisVersion.split("\\.");
         if (args.length < 2) {
             return false;
@@ -2,8 +2,9 @@ package io.github.invvk.redisvelocity;
 
 import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
@@ -25,6 +26,7 @@ import io.github.invvk.redisvelocity.config.ProxyConfiguration;
 import io.github.invvk.redisvelocity.events.PubSubMessageEvent;
 import io.github.invvk.redisvelocity.util.IOUtil;
 import io.github.invvk.redisvelocity.util.LuaManager;
+import io.github.invvk.redisvelocity.util.uuid.BatchingMojangResolver;
 import io.github.invvk.redisvelocity.util.uuid.NameFetcher;
 import io.github.invvk.redisvelocity.util.uuid.UUIDFetcher;
 import io.github.invvk.redisvelocity.util.uuid.UUIDTranslator;
@@ -35,16 +37,23 @@ import lombok.NonNull;
 import org.slf4j.Logger;
 import redis.clients.jedis.*;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.util.SafeEncoder;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The RedisVelocity plugin.
@@ -71,20 +80,41 @@ public final class RedisVelocity {
     private static RedisVelocityConfiguration configuration;
     @Getter
     private DataManager dataManager;
+    @Getter(AccessLevel.PACKAGE)
+    private NetworkState networkState;
     @Getter
     private static OkHttpClient httpClient;
     private volatile List<String> serverIds;
-    private final AtomicInteger nagAboutServers = new AtomicInteger();
+    private volatile List<String> laggedServerIds = Collections.emptyList();
     private final AtomicInteger globalPlayerCount = new AtomicInteger();
+    private volatile Map<String, String> playerCounts = Collections.emptyMap();
     private Future<?> integrityCheck;
     private Future<?> heartbeatTask;
-    private LuaManager.Script serverToPlayersScript;
-    private LuaManager.Script getPlayerCountScript;
+    private Future<?> networkStateResyncTask;
+    private Future<?> leaderElectionTask;
+    private LeaderElection leaderElection;
+    private PubSubDispatcher pubSubDispatcher;
+    private DataStreamReader dataStreamReader;
+    @Getter(AccessLevel.PACKAGE)
+    private PubSubHandlers pubSubHandlers;
+    private final AtomicBoolean recoveringDroppedMessages = new AtomicBoolean();
+    private volatile long lastDropWarning;
+    private final AtomicBoolean cleaningUpLaggedProxies = new AtomicBoolean();
+    private String proxyExpiredChannel;
+    private LuaManager.Script reconcilePlayerCountsScript;
+    private LuaManager.Script heartbeatScript;
+    private LuaManager.Script cleanupProxyScript;
+    @Getter(AccessLevel.PACKAGE)
+    private LuaManager.Script moveToServerScript;
 
-    private static final Object SERVER_TO_PLAYERS_KEY = new Object();
-    private final Cache<Object, Multimap<String, UUID>> serverToPlayersCache = CacheBuilder.newBuilder()
-            .expireAfterWrite(5, TimeUnit.SECONDS)
-            .build();
+    private static final int CLEANUP_BATCH_SIZE = 500;
+    private final AtomicReference<ServerToPlayersSnapshot> serverToPlayers = new AtomicReference<>();
+    private final AtomicBoolean refreshingServerToPlayers = new AtomicBoolean();
+    private final AtomicLong serverToPlayersVersion = new AtomicLong();
+    private Future<?> serverToPlayersTask;
+    private Future<?> uuidCacheJanitor;
+    private Future<?> knownNamesFilterTask;
+    private InvalidationListener invalidationListener;
 
     private final ProxyConfiguration pconfig;
 
@@ -112,6 +142,9 @@ public final class RedisVelocity {
     private final Logger logger;
 
     private final ScheduledExecutorService executor;
+    // Runs the blocking Redis calls behind the asynchronous API, sized to the Redis pool.
+    @Getter(AccessLevel.PACKAGE)
+    private ExecutorService ioExecutor;
 
     @Getter private final Path dataFolder;
 
@@ -136,39 +169,147 @@ public final class RedisVelocity {
         return server;
     }
 
-    private List<String> getCurrentServerIds(boolean nag, boolean lagged) {
+    /**
+     * Refreshes the live and lagged proxies from the heartbeats hash in one HGETALL. A lagged proxy is
+     * only forgotten once its players have been cleaned up.
+     */
+    private void refreshServerIds() {
         try (Jedis jedis = pool.getResource()) {
             long time = getRedisTime(jedis.time());
-            int nagTime = 0;
-            if (nag) {
-                nagTime = nagAboutServers.decrementAndGet();
-                if (nagTime <= 0) {
-                    nagAboutServers.set(10);
-                }
-            }
-            ImmutableList.Builder<String> servers = ImmutableList.builder();
+            int timeout = configuration.getHeartbeatTimeout();
+            ImmutableList.Builder<String> live = ImmutableList.builder();
+            ImmutableList.Builder<String> lagged = ImmutableList.builder();
             Map<String, String> heartbeats = jedis.hgetAll("heartbeats");
             for (Map.Entry<String, String> entry : heartbeats.entrySet()) {
                 try {
                     long stamp = Long.parseLong(entry.getValue());
-                    if (lagged ? time >= stamp + 30 : time <= stamp + 30)
-                        servers.add(entry.getKey());
-                    else if (nag && nagTime <= 0) {
+                    if (time <= stamp + timeout)
+                        live.add(entry.getKey());
+                    else if (jedis.exists("proxy:" + entry.getKey() + ":usersOnline"))
+                        lagged.add(entry.getKey());
+                    else {
                         getLogger().warn(entry.getKey() + " is " + (time - stamp) + " seconds behind! (Time not synchronized or server down?) and was removed from heartbeat.");
                         jedis.hdel("heartbeats", entry.getKey());
                     }
                 } catch (NumberFormatException ignored) {
                 }
             }
-            return servers.build();
+            serverIds = live.build();
+            laggedServerIds = lagged.build();
         } catch (JedisConnectionException e) {
             getLogger().error("Unable to fetch server IDs", e);
-            return Collections.singletonList(configuration.getServerId());
+            serverIds = Collections.singletonList(configuration.getServerId());
+        }
+    }
+
+    /**
+     * Refreshes our entry in the {@code heartbeats-zset} sorted set and, in the same script call,
+     * prunes dead proxies and fetches the live and lagged proxies along with the player counts.
+     */
+    @SuppressWarnings("unchecked")
+    private void sortedSetHeartbeat() {
+        List<String> args = new ArrayList<>(3);
+        args.add(configuration.getServerId());
+        args.add(String.valueOf(configuration.getHeartbeatTimeout()));
+        if (configuration.isKeyspaceFailureDetection())
+            args.add(String.valueOf(TimeUnit.SECONDS.toMillis(configuration.getHeartbeatTimeout())));
+        List<Object> result = (List<Object>) heartbeatScript.eval(ImmutableList.of(), args);
+        serverIds = ImmutableList.copyOf((List<String>) result.get(0));
+        laggedServerIds = ImmutableList.copyOf((List<String>) result.get(1));
+
+        List<String> counts = (List<String>) result.get(2);
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i + 1 < counts.size(); i += 2) {
+            map.put(counts.get(i), counts.get(i + 1));
+        }
+        updateCounts(map);
+    }
+
+    /**
+     * Cleans up the players of proxies that stopped sending heartbeats. Only the leader does this, and it
+     * runs outside the heartbeat task, so a large cleanup can't delay our own heartbeat.
+     */
+    private void cleanUpLaggedProxies(List<String> lagged) {
+        if (lagged.isEmpty() || !leaderElection.isLeader() || !cleaningUpLaggedProxies.compareAndSet(false, true))
+            return;
+        executor.execute(() -> {
+            try {
+                for (String proxy : lagged) {
+                    long token = leaderElection.getToken();
+                    if (token == 0)
+                        break;
+                    long cleaned = cleanUpProxy(proxy, token);
+                    if (cleaned > 0)
+                        getLogger().info("Cleaned up lagged proxy " + proxy + " (" + cleaned + " players).");
+                }
+            } catch (Throwable e) {
+                getLogger().error("Unable to clean up lagged proxies", e);
+            } finally {
+                cleaningUpLaggedProxies.set(false);
+            }
+        });
+    }
+
+    /**
+     * Removes all players of a proxy with {@code cleanup_proxy.lua}, which pops and cleans up to
+     * {@link #CLEANUP_BATCH_SIZE} players per call and publishes a single BULK_LEAVE message for them, or a LEAVE
+     * message per player unless bulk-leave-messages is enabled.
+     * Batching keeps each call short, so Redis isn't blocked for other clients.
+     *
+     * @param token the fencing token of the leader, or 0 when cleaning up our own proxy
+     * @return the number of players that were removed
+     */
+    private long cleanUpProxy(String proxy, long token) {
+        List<String> args = new ArrayList<>(7);
+        args.add(proxy);
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add(String.valueOf(CLEANUP_BATCH_SIZE));
+        args.add(configuration.getServerId());
+        args.add(String.valueOf(token));
+        args.add(configuration.isDataStream() ? String.valueOf(configuration.getDataStreamLength()) : "0");
+        args.add(String.valueOf(configuration.isBulkLeaveMessages()));
+        long total = 0;
+        long cleaned;
+        do {
+            cleaned = (Long) cleanupProxyScript.eval(ImmutableList.of(), args);
+            if (cleaned < 0) {
+                getLogger().info("Stopped cleaning up " + proxy + ", another proxy became the leader.");
+                break;
+            }
+            total += cleaned;
+        } while (cleaned > 0);
+        return total;
+    }
+
+    /**
+     * Called when {@code proxy:<id>:alive} expired, meaning the proxy missed its heartbeats for the
+     * whole heartbeat timeout.
+     */
+    private void onProxyExpired(String proxy) {
+        if (proxy.equals(configuration.getServerId()))
+            return; // We were late ourselves, the next heartbeat puts the key back.
+        getLogger().warn("Proxy " + proxy + " stopped sending heartbeats, cleaning up its players.");
+        List<String> live = new ArrayList<>(serverIds);
+        live.remove(proxy);
+        serverIds = ImmutableList.copyOf(live);
+        cleanUpLaggedProxies(Collections.singletonList(proxy));
+    }
+
+    private void enableExpiredKeyEvents(Jedis jedis) {
+        try {
+            List<String> current = jedis.configGet("notify-keyspace-events");
+            String flags = current.size() > 1 ? current.get(1) : "";
+            if (!flags.contains("E") || !(flags.contains("x") || flags.contains("A")))
+                jedis.configSet("notify-keyspace-events", flags + (flags.contains("E") ? "" : "E") + "x");
+        } catch (JedisDataException e) {
+            getLogger().warn("Unable to enable expired key events, make sure notify-keyspace-events contains Ex on your Redis server.", e);
         }
     }
 
     public Set<UUID> getPlayersOnProxy(String server) {
         Preconditions.checkArgument(getServerIds().contains(server), server + " is not a valid proxy ID");
+        if (isNetworkStateReady())
+            return networkState.getPlayersOnProxy(server);
         try (Jedis jedis = pool.getResource()) {
             Set<String> users = jedis.smembers("proxy:" + server + ":usersOnline");
             ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
@@ -180,36 +321,140 @@ public final class RedisVelocity {
     }
 
     final Multimap<String, UUID> serversToPlayers() {
+        return getServerToPlayersSnapshot().getPlayers();
+    }
+
+    /**
+     * Returns the players on each server. With the network state mirror this is always current, otherwise it is
+     * the last snapshot read from Redis, which is refreshed in the background so callers never wait for it.
+     */
+    ServerToPlayersSnapshot getServerToPlayersSnapshot() {
+        if (isNetworkStateReady())
+            return new ServerToPlayersSnapshot(networkState.getServerToPlayers(), 0, System.currentTimeMillis());
+        ServerToPlayersSnapshot snapshot = serverToPlayers.get();
+        if (snapshot == null)
+            return loadServerToPlayers();
+        long refresh = TimeUnit.SECONDS.toMillis(configuration.getServerToPlayersRefresh());
+        if (System.currentTimeMillis() - snapshot.getTimestamp() >= refresh)
+            executor.execute(this::refreshServerToPlayers); // The scheduled refresh fell behind.
+        return snapshot;
+    }
+
+    private synchronized ServerToPlayersSnapshot loadServerToPlayers() {
+        ServerToPlayersSnapshot snapshot = serverToPlayers.get();
+        if (snapshot != null)
+            return snapshot;
+        refreshServerToPlayers();
+        snapshot = serverToPlayers.get();
+        if (snapshot == null)
+            throw new RuntimeException("Unable to get players on servers");
+        return snapshot;
+    }
+
+    /**
+     * Reads the players on each server from Redis and replaces the snapshot. Only one refresh runs at a time,
+     * others return right away.
+     */
+    private void refreshServerToPlayers() {
+        if (!refreshingServerToPlayers.compareAndSet(false, true))
+            return;
         try {
-            return serverToPlayersCache.get(SERVER_TO_PLAYERS_KEY, () -> {
-                Collection<String> data = (Collection<String>) serverToPlayersScript.eval(ImmutableList.of(), getServerIds());
-
-                ImmutableMultimap.Builder<String, UUID> builder = ImmutableMultimap.builder();
-                String key = null;
-                for (String s : data) {
-                    if (key == null) {
-                        key = s;
-                        continue;
-                    }
+            ImmutableMultimap.Builder<String, UUID> builder = ImmutableMultimap.builder();
+            try (Jedis jedis = pool.getResource()) {
+                Set<String> servers = jedis.smembers("servers");
+                Pipeline pipeline = jedis.pipelined();
+                Map<String, Response<Set<String>>> members = new HashMap<>();
+                for (String server : servers) {
+                    members.put(server, pipeline.smembers("server:" + server + ":usersOnline"));
+                }
+                pipeline.sync();
 
-                    builder.put(key, UUID.fromString(s));
-                    key = null;
+                for (Map.Entry<String, Response<Set<String>>> entry : members.entrySet()) {
+                    for (String player : entry.getValue().get()) {
+                        builder.put(entry.getKey(), UUID.fromString(player));
+                    }
                 }
+            }
+            serverToPlayers.set(new ServerToPlayersSnapshot(builder.build(),
+                    serverToPlayersVersion.incrementAndGet(), System.currentTimeMillis()));
+        } catch (Throwable e) {
+            getLogger().error("Unable to refresh players on servers", e);
+        } finally {
+            refreshingServerToPlayers.set(false);
+        }
+    }
 
-                return builder.build();
-            });
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
+    Set<UUID> getPlayersOnServer(String server) {
+        if (isNetworkStateReady())
+            return networkState.getPlayersOnServer(server);
+        try (Jedis jedis = pool.getResource()) {
+            Set<String> users = getLiveMembersOfServer(jedis, server);
+            ImmutableSet.Builder<UUID> builder = ImmutableSet.builder();
+            for (String user : users) {
+                builder.add(UUID.fromString(user));
+            }
+            return builder.build();
         }
     }
 
     int getCount() {
+        if (isNetworkStateReady())
+            return networkState.getPlayerCount();
         return globalPlayerCount.get();
     }
 
-    int getCurrentCount() {
-        Long count = (Long) getPlayerCountScript.eval(ImmutableList.of(), ImmutableList.of());
-        return count.intValue();
+    int getCountOnProxy(String proxy) {
+        if (isNetworkStateReady())
+            return networkState.getPlayerCountOnProxy(proxy);
+        return parseCount(playerCounts.get("proxy:" + proxy));
+    }
+
+    int getCountOnServer(String server) {
+        if (isNetworkStateReady())
+            return networkState.getPlayerCountOnServer(server);
+        if (laggedServerIds.isEmpty())
+            return parseCount(playerCounts.get("server:" + server));
+        // The counter still includes the players of proxies that stopped sending heartbeats, until they are cleaned up.
+        try (Jedis jedis = pool.getResource()) {
+            return getLiveMembersOfServer(jedis, server).size();
+        }
+    }
+
+    /**
+     * @return the members of the player set of a server, leaving out those of proxies that stopped sending
+     * heartbeats but weren't cleaned up yet
+     */
+    private Set<String> getLiveMembersOfServer(Jedis jedis, String server) {
+        List<String> lagged = laggedServerIds;
+        if (lagged.isEmpty())
+            return jedis.smembers("server:" + server + ":usersOnline");
+        String[] keys = new String[lagged.size() + 1];
+        keys[0] = "server:" + server + ":usersOnline";
+        for (int i = 0; i < lagged.size(); i++) {
+            keys[i + 1] = "proxy:" + lagged.get(i) + ":usersOnline";
+        }
+        return jedis.sdiff(keys);
+    }
+
+    private void updateCounts(Map<String, String> counts) {
+        playerCounts = counts;
+        // Only the live proxies are added up, the total still includes proxies that weren't cleaned up yet.
+        int total = 0;
+        for (String proxy : getServerIds()) {
+            total += parseCount(counts.get("proxy:" + proxy));
+        }
+        globalPlayerCount.set(total);
+    }
+
+    private static int parseCount(String count) {
+        if (count == null)
+            return 0;
+        try {
+            // Counters may briefly go below zero until they are reconciled.
+            return Math.max(0, Integer.parseInt(count));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     private Set<String> getLocalPlayersAsUuidStrings() {
@@ -220,7 +465,219 @@ public final class RedisVelocity {
         return builder.build();
     }
 
+    /**
+     * Makes sure our proxy set in Redis matches the players connected to this proxy. Both sides are first
+     * compared by size and digest (see {@link RedisUtil#digest(UUID)}), the set itself is only fetched
+     * and diffed when they disagree.
+     */
+    private void checkIntegrity(Jedis tmpRsc) {
+        String serverId = configuration.getServerId();
+        Collection<Player> localPlayers = getServer().getAllPlayers();
+        long localDigest = 0;
+        for (Player player : localPlayers) {
+            localDigest += RedisUtil.digest(player.getUniqueId());
+        }
+
+        Pipeline pipeline = tmpRsc.pipelined();
+        Response<Long> size = pipeline.scard("proxy:" + serverId + ":usersOnline");
+        Response<String> digest = pipeline.hget("proxy-digests", serverId);
+        pipeline.sync();
+        if (size.get() == localPlayers.size() && String.valueOf(localDigest).equals(Objects.requireNonNullElse(digest.get(), "0")))
+            return;
+
+        Set<String> players = getLocalPlayersAsUuidStrings();
+        // Read together, so the drift of the digest from the set can be told apart from joins and leaves meanwhile.
+        Transaction transaction = tmpRsc.multi();
+        Response<Set<String>> members = transaction.smembers("proxy:" + serverId + ":usersOnline");
+        Response<String> storedDigest = transaction.hget("proxy-digests", serverId);
+        transaction.exec();
+        Set<String> playersInRedis = members.get();
+        long drift = Long.parseLong(Objects.requireNonNullElse(storedDigest.get(), "0"));
+        for (String member : playersInRedis) {
+            try {
+                drift -= RedisUtil.digest(UUID.fromString(member));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        Set<String> absentLocally = new HashSet<>(playersInRedis);
+        absentLocally.removeAll(players);
+        Set<String> absentInRedis = new HashSet<>(players);
+        absentInRedis.removeAll(playersInRedis);
+
+        if (!absentLocally.isEmpty()) {
+            // Check all other proxies in one round trip. SISMEMBER rather than SMISMEMBER, which needs Redis 6.2.
+            Map<String, List<Response<Boolean>>> found = new HashMap<>();
+            pipeline = tmpRsc.pipelined();
+            for (String proxyId : getServerIds()) {
+                if (proxyId.equals(serverId)) continue;
+                for (String member : absentLocally) {
+                    found.computeIfAbsent(member, k -> new ArrayList<>()).add(pipeline.sismember("proxy:" + proxyId + ":usersOnline", member));
+                }
+            }
+            pipeline.sync();
+
+            Set<String> onOtherProxy = new HashSet<>();
+            for (Map.Entry<String, List<Response<Boolean>>> entry : found.entrySet()) {
+                for (Response<Boolean> response : entry.getValue()) {
+                    if (response.get()) {
+                        onOtherProxy.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+
+            for (String member : absentLocally) {
+                if (!onOtherProxy.contains(member)) {
+                    RedisUtil.cleanUpPlayer(member, tmpRsc);
+                    getLogger().warn("Player found in set that was not found locally and globally: " + member);
+                } else {
+                    // Just clean up the set.
+                    if (tmpRsc.srem("proxy:" + serverId + ":usersOnline", member) > 0)
+                        tmpRsc.hincrBy("proxy-digests", serverId, -RedisUtil.digest(UUID.fromString(member)));
+                    getLogger().warn("Player found in set that was not found locally, but is on another proxy: " + member);
+                }
+            }
+        }
+
+        pipeline = tmpRsc.pipelined();
+        Map<Player, Response<Long>> created = new HashMap<>();
+
+        for (String player : absentInRedis) {
+            // Player not online according to Redis but not BungeeCord.
+            getLogger().warn("Player " + player + " is on the proxy but not in Redis.");
+
+            Optional<Player> pl = getServer().getPlayer(UUID.fromString(player));
+            if (pl.isEmpty())
+                continue;
+
+            Player proxiedPlayer = pl.get();
+
+            created.put(proxiedPlayer, RedisUtil.createPlayer(proxiedPlayer, pipeline));
+        }
+
+        pipeline.sync();
+
+        for (Map.Entry<Player, Response<Long>> entry : created.entrySet()) {
+            RedisUtil.publishData(tmpRsc, new DataManager.DataManagerMessage<>(
+                    entry.getKey().getUniqueId(), DataManager.DataManagerMessage.Action.JOIN, entry.getValue().get(),
+                    new DataManager.LoginPayload(entry.getKey().getRemoteAddress().getAddress(), entry.getKey().getUsername())));
+        }
+
+        // Every fix above moved the digest along with the set, so only the drift from before is left to correct.
+        // Applied as an increment, so joins and leaves meanwhile aren't overwritten.
+        if (drift != 0)
+            tmpRsc.hincrBy("proxy-digests", serverId, -drift);
+    }
+
+    /**
+     * @return the statistics of the local caches by name
+     */
+    Map<String, CacheStats> getCacheStats() {
+        ImmutableMap.Builder<String, CacheStats> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Cache<?, ?>> entry : dataManager.getCaches().entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().stats());
+        }
+        builder.putAll(uuidTranslator.getCacheStats());
+        return builder.build();
+    }
+
+    /**
+     * @return the number of entries in the local caches by name
+     */
+    Map<String, Long> getCacheSizes() {
+        ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+        for (Map.Entry<String, Cache<?, ?>> entry : dataManager.getCaches().entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().size());
+        }
+        builder.putAll(uuidTranslator.getCacheSizes());
+        return builder.build();
+    }
+
+    /**
+     * @return the number of queued, handled and dropped PubSub messages, and how often and how long the
+     * subscriber was disconnected
+     */
+    Map<String, Long> getPubSubStats() {
+        return ImmutableMap.<String, Long>builder()
+                .putAll(pubSubDispatcher.getStats())
+                .putAll(psl.getStats())
+                .build();
+    }
+
+    /**
+     * Handles a message of {@code redisvelocity-data}, received through PubSub or the data stream.
+     */
+    void onDataMessage(byte[] message) {
+        if (message.length == 0)
+            return;
+        for (DataManager.DataManagerMessage<?> decoded : dataManager.decode(message)) {
+            if (!pubSubDispatcher.dispatch(decoded.getTarget(), () -> dataManager.handle(decoded)))
+                onMessageDropped(true);
+        }
+    }
+
+    void dispatchPubSub(Object key, Runnable task) {
+        if (!pubSubDispatcher.dispatch(key, task))
+            onMessageDropped(false);
+    }
+
+    private void onProxyCommand(String channel, String message) {
+        if (message.trim().isEmpty())
+            return;
+        if (message.startsWith("/"))
+            message = message.substring(1);
+        getLogger().info("Invoking command via PubSub: /" + message);
+        getServer().getCommandManager().executeAsync(getServer().getConsoleCommandSource(), message);
+    }
+
+    private void onMessageDropped(boolean data) {
+        long now = System.currentTimeMillis();
+        if (now - lastDropWarning > TimeUnit.SECONDS.toMillis(10)) {
+            lastDropWarning = now;
+            getLogger().warn("PubSub messages are coming in faster than they can be handled, dropping some. Dropped so far: "
+                    + pubSubDispatcher.getStats().get("dropped"));
+        }
+        if (!data)
+            return;
+
+        recoverMissedDataMessages();
+    }
+
+    /**
+     * Called when messages on {@code redisvelocity-data} were missed. The mirror and the cached records may have
+     * missed a change, so they start over, with at most one resync running at a time.
+     */
+    void recoverMissedDataMessages() {
+        dataManager.invalidateAll();
+        // Names announced in JOIN messages were missed as well.
+        executor.execute(uuidTranslator::rebuildFilter);
+        if (networkState != null && recoveringDroppedMessages.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                try {
+                    networkState.resync();
+                } catch (Throwable e) {
+                    getLogger().error("Unable to resync network state", e);
+                } finally {
+                    recoveringDroppedMessages.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a random delay below {@code period}, used to spread periodic work of proxies started together
+     */
+    private static long jitter(long period) {
+        return ThreadLocalRandom.current().nextLong(period);
+    }
+
+    private boolean isNetworkStateReady() {
+        return networkState != null && networkState.isReady();
+    }
+
     Set<UUID> getPlayers() {
+        if (isNetworkStateReady())
+            return networkState.getPlayers();
         ImmutableSet.Builder<UUID> setBuilder = ImmutableSet.builder();
         if (pool != null) {
             try (Jedis rsc = pool.getResource()) {
@@ -263,6 +720,16 @@ public final class RedisVelocity {
         }
     }
 
+    void sendChannelMessage(String channel, byte[] message) {
+        try (Jedis jedis = pool.getResource()) {
+            jedis.publish(SafeEncoder.encode(channel), message);
+        } catch (JedisConnectionException e) {
+            // Redis server has disappeared!
+            getLogger().error("Unable to get connection from pool - did your Redis server go away?", e);
+            throw new RuntimeException("Unable to publish channel message", e);
+        }
+    }
+
     private long getRedisTime(List<String> timeRes) {
         return Long.parseLong(timeRes.get(0));
     }
@@ -296,6 +763,11 @@ public final class RedisVelocity {
             throw new RuntimeException("Unable to connect to your Redis server!", e);
         }
         if (pool != null) {
+            ioExecutor = Executors.newFixedThreadPool(pconfig.getConfig().getProperty(ProxyConfigProperties.MAXIMUM_CONNECTIONS),
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("redisvelocity-io-%d")
+                            .build());
             try (Jedis tmpRsc = pool.getResource()) {
                 // This is more portable than INFO <section>
                 String info = tmpRsc.info();
@@ -308,39 +780,82 @@ public final class RedisVelocity {
                             throw new RuntimeException("Unsupported Redis version detected");
                         } else {
                             LuaManager manager = new LuaManager(this);
-                            serverToPlayersScript = manager.createScript(IOUtil.readInputStreamAsString(getResource("lua/server_to_players.lua")));
-                            getPlayerCountScript = manager.createScript(IOUtil.readInputStreamAsString(getResource("lua/get_player_count.lua")));
+                            reconcilePlayerCountsScript = manager.createScript(IOUtil.readInputStreamAsString(getResource("lua/reconcile_player_counts.lua")));
+                            heartbeatScript = manager.createScript(IOUtil.readInputStreamAsString(getResource("lua/heartbeat.lua")));
+                            cleanupProxyScript = manager.createScript(IOUtil.readInputStreamAsString(getResource("lua/cleanup_proxy.lua")));
+                            moveToServerScript = manager.createScript(IOUtil.readInputStreamAsString(getResource("lua/move_to_server.lua")));
+                            leaderElection = new LeaderElection(this, manager.createScript(IOUtil.readInputStreamAsString(getResource("lua/leader.lua"))),
+                                    TimeUnit.SECONDS.toMillis(configuration.getLeaderLease()));
                         }
 
                         break;
                     }
                 }
 
-                tmpRsc.hset("heartbeats", configuration.getServerId(), tmpRsc.time().get(0));
+                if (!configuration.isSortedSetHeartbeats())
+                    tmpRsc.hset("heartbeats", configuration.getServerId(), tmpRsc.time().get(0));
+
+                if (configuration.isKeyspaceFailureDetection()) {
+                    enableExpiredKeyEvents(tmpRsc);
+                    proxyExpiredChannel = "__keyevent@0__:expired";
+                }
 
-                long uuidCacheSize = tmpRsc.hlen("uuid-cache");
-                if (uuidCacheSize > 750000) {
-                    getLogger().info("Looks like you have a really big UUID cache! Run https://www.spigotmc.org/resources/redisbungeecleaner.8505/ as soon as possible.");
+                if (tmpRsc.exists("uuid-cache")) {
+                    getLogger().info("Found " + tmpRsc.hlen("uuid-cache") + " entries in the old UUID cache format, they will be migrated in the background.");
+                }
+            }
+            if (configuration.isSortedSetHeartbeats())
+                sortedSetHeartbeat();
+            else
+                refreshServerIds();
+            uuidTranslator = new UUIDTranslator(this, configuration.getUuidCacheSize(), configuration.getKnownNamesFilterSize());
+            uuidTranslator.setMojangResolver(new BatchingMojangResolver(httpClient, executor,
+                    BatchingMojangResolver.PROFILES_URL, BatchingMojangResolver.NAMES_URL, 5000, 1));
+            if (configuration.getLocalUuidStoreSize() > 0) {
+                try {
+                    Files.createDirectories(dataFolder);
+                    uuidTranslator.openLocalStore(dataFolder.resolve("uuid-store.dat"), configuration.getLocalUuidStoreSize());
+                } catch (IOException e) {
+                    getLogger().error("Unable to open the local UUID store, continuing without it", e);
                 }
             }
-            serverIds = getCurrentServerIds(true, false);
-            uuidTranslator = new UUIDTranslator(this);
+            executor.execute(uuidTranslator::rebuildFilter);
+            long leaseMillis = TimeUnit.SECONDS.toMillis(configuration.getLeaderLease());
+            leaderElectionTask = executor.scheduleAtFixedRate(() -> {
+                try {
+                    leaderElection.tick();
+                } catch (Throwable e) {
+                    getLogger().error("Unable to renew leader lease - did your Redis server go away?", e);
+                }
+            }, 0, leaseMillis / 3, TimeUnit.MILLISECONDS);
             heartbeatTask = executor.scheduleAtFixedRate(() -> {
+                if (configuration.isSortedSetHeartbeats()) {
+                    try {
+                        sortedSetHeartbeat();
+                        cleanUpLaggedProxies(laggedServerIds);
+                    } catch (Throwable e) {
+                        getLogger().error("Unable to update heartbeat - did your Redis server go away?", e);
+                    }
+                    return;
+                }
                 try (Jedis rsc = pool.getResource()) {
                     long redisTime = getRedisTime(rsc.time());
                     rsc.hset("heartbeats", configuration.getServerId(), String.valueOf(redisTime));
+                    if (configuration.isKeyspaceFailureDetection())
+                        rsc.psetex("proxy:" + configuration.getServerId() + ":alive", TimeUnit.SECONDS.toMillis(configuration.getHeartbeatTimeout()), "1");
                 } catch (JedisConnectionException e) {
                     // Redis server has disappeared!
                     getLogger().error("Unable to update heartbeat - did your Redis server go away?", e);
                     return;
                 }
-                try {
-                    serverIds = getCurrentServerIds(true, false);
-                    globalPlayerCount.set(getCurrentCount());
+                try (Jedis rsc = pool.getResource()) {
+                    refreshServerIds();
+                    updateCounts(rsc.hgetAll("player-counts"));
+                    cleanUpLaggedProxies(laggedServerIds);
                 } catch (Throwable e) {
                     getLogger().error("Unable to update data - did your Redis server go away?", e);
                 }
-            }, 0, 3, TimeUnit.SECONDS);
+            }, 0, configuration.getHeartbeatInterval(), TimeUnit.SECONDS);
             dataManager = new DataManager(this);
             CommandManager manager = getServer().getCommandManager();
             if (configuration.isRegisterBungeeCommands()) {
@@ -389,70 +904,77 @@ public final class RedisVelocity {
             api = new RedisVelocityAPI(this);
             getServer().getEventManager().register(this, new RedisVelocityListener(this, configuration.getExemptAddresses()));
             getServer().getEventManager().register(this, dataManager);
+            if (configuration.isClientSideCaching()) {
+                invalidationListener = new InvalidationListener(this);
+                executor.execute(invalidationListener);
+            }
+            if (configuration.isNetworkStateMirror())
+                networkState = new NetworkState(this);
+            pubSubDispatcher = new PubSubDispatcher(getLogger(), configuration.getPubSubLanes(), configuration.getPubSubQueueSize());
             psl = new PubSubListener();
+            pubSubHandlers = new PubSubHandlers(this);
+            pubSubHandlers.register("redisvelocity-allservers", false, PubSubCodec.STRING, this::onProxyCommand, null);
+            pubSubHandlers.register("redisvelocity-" + configuration.getServerId(), false, PubSubCodec.STRING, this::onProxyCommand, null);
+            // Handled right on the subscriber thread, so announcements are never dropped by a full lane.
+            pubSubHandlers.register(UUIDTranslator.CHANNEL, false, PubSubCodec.STRING, (channel, message) -> uuidTranslator.onAnnounced(message), Runnable::run);
             getServer().getScheduler().buildTask(this, psl).schedule();
+            if (configuration.isDataStream()) {
+                dataStreamReader = new DataStreamReader(this);
+                executor.execute(dataStreamReader);
+            }
+            if (networkState != null) {
+                // Subscribed before bootstrapping, messages received meanwhile are replayed on top of the snapshot.
+                // Later resyncs are spread out, so proxies started together don't all resync at the same time.
+                Runnable resync = () -> {
+                    try {
+                        networkState.resync();
+                    } catch (Throwable e) {
+                        getLogger().error("Unable to resync network state", e);
+                    }
+                };
+                long interval = TimeUnit.MINUTES.toMillis(configuration.getNetworkStateResyncInterval());
+                executor.execute(resync);
+                networkStateResyncTask = executor.scheduleAtFixedRate(resync, interval / 2 + jitter(interval), interval, TimeUnit.MILLISECONDS);
+            }
+            // Keeps the snapshot fresh once someone asked for it, as long as the mirror can't answer instead.
+            serverToPlayersTask = executor.scheduleAtFixedRate(() -> {
+                if (!isNetworkStateReady() && serverToPlayers.get() != null)
+                    refreshServerToPlayers();
+            }, configuration.getServerToPlayersRefresh(), configuration.getServerToPlayersRefresh(), TimeUnit.SECONDS);
             integrityCheck = executor.scheduleAtFixedRate(() -> {
                 try (Jedis tmpRsc = pool.getResource()) {
-                    Set<String> players = getLocalPlayersAsUuidStrings();
-                    Set<String> playersInRedis = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                    List<String> lagged = getCurrentServerIds(false, true);
-
-                    // Clean up lagged players.
-                    for (String s : lagged) {
-                        Set<String> laggedPlayers = tmpRsc.smembers("proxy:" + s + ":usersOnline");
-                        tmpRsc.del("proxy:" + s + ":usersOnline");
-                        if (!laggedPlayers.isEmpty()) {
-                            getLogger().info("Cleaning up lagged proxy " + s + " (" + laggedPlayers.size() + " players)...");
-                            for (String laggedPlayer : laggedPlayers) {
-                                RedisUtil.cleanUpPlayer(laggedPlayer, tmpRsc);
-                            }
-                        }
-                    }
-
-                    Set<String> absentLocally = new HashSet<>(playersInRedis);
-                    absentLocally.removeAll(players);
-                    Set<String> absentInRedis = new HashSet<>(players);
-                    absentInRedis.removeAll(playersInRedis);
-
-                    for (String member : absentLocally) {
-                        boolean found = false;
-                        for (String proxyId : getServerIds()) {
-                            if (proxyId.equals(configuration.getServerId())) continue;
-                            if (tmpRsc.sismember("proxy:" + proxyId + ":usersOnline", member)) {
-                                // Just clean up the set.
-                                found = true;
-                                break;
-                            }
-                        }
-                        if (!found) {
-                            RedisUtil.cleanUpPlayer(member, tmpRsc);
-                            getLogger().warn("Player found in set that was not found locally and globally: " + member);
-                        } else {
-                            tmpRsc.srem("proxy:" + configuration.getServerId() + ":usersOnline", member);
-                            getLogger().warn("Player found in set that was not found locally, but is on another proxy: " + member);
-                        }
-                    }
-
-                    Pipeline pipeline = tmpRsc.pipelined();
-
-                    for (String player : absentInRedis) {
-                        // Player not online according to Redis but not BungeeCord.
-                        getLogger().warn("Player " + player + " is on the proxy but not in Redis.");
-
-                        Optional<Player> pl = getServer().getPlayer(UUID.fromString(player));
-                        if (pl.isEmpty())
-                            continue;
-
-                        Player proxiedPlayer = pl.get();
-
-                        RedisUtil.createPlayer(proxiedPlayer, pipeline, true);
-                    }
-
-                    pipeline.sync();
+                    checkIntegrity(tmpRsc);
                 } catch (Throwable e) {
                     getLogger().error("Unable to fix up stored player data", e);
                 }
-            }, 0, 1, TimeUnit.MINUTES);
+
+                // Correct any drift of the player counters from the sets they count, once for the network.
+                try {
+                    if (leaderElection.isLeader())
+                        reconcilePlayerCountsScript.eval(ImmutableList.of(), getServerIds());
+                } catch (Throwable e) {
+                    getLogger().error("Unable to reconcile the player counters", e);
+                }
+            }, jitter(TimeUnit.MINUTES.toMillis(1)), TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
+            // Moves the old uuid-cache hash over a few hundred entries at a time, once for the network. The other
+            // proxies only check now and then whether it is gone, and the task stops once it is.
+            AtomicLong janitorRuns = new AtomicLong();
+            // A safety net for announcements of stored names that were missed without noticing.
+            long filterInterval = TimeUnit.MINUTES.toMillis(configuration.getNetworkStateResyncInterval());
+            knownNamesFilterTask = executor.scheduleAtFixedRate(uuidTranslator::rebuildFilter,
+                    filterInterval / 2 + jitter(filterInterval), filterInterval, TimeUnit.MILLISECONDS);
+            uuidCacheJanitor = executor.scheduleAtFixedRate(() -> {
+                try {
+                    if (leaderElection.isLeader())
+                        uuidTranslator.cleanUpLegacyCache(5);
+                    else if (janitorRuns.getAndIncrement() % 30 == 0)
+                        uuidTranslator.checkLegacyCache();
+                    if (!uuidTranslator.hasLegacyCache())
+                        uuidCacheJanitor.cancel(false);
+                } catch (Throwable e) {
+                    getLogger().error("Unable to clean up the old UUID cache", e);
+                }
+            }, 1, 1, TimeUnit.SECONDS);
         }
         getServer().getChannelRegistrar().register(new LegacyChannelIdentifier("legacy:redisvelocity"), new LegacyChannelIdentifier("RedisVelocity"));
     }
@@ -464,15 +986,34 @@ public final class RedisVelocity {
             psl.poison();
             integrityCheck.cancel(true);
             heartbeatTask.cancel(true);
+            if (networkStateResyncTask != null)
+                networkStateResyncTask.cancel(true);
+            leaderElectionTask.cancel(true);
+            serverToPlayersTask.cancel(true);
+            uuidCacheJanitor.cancel(true);
+            knownNamesFilterTask.cancel(true);
+            if (invalidationListener != null)
+                invalidationListener.stop();
+            try {
+                leaderElection.release();
+            } catch (Throwable e) {
+                getLogger().error("Unable to release leadership", e);
+            }
 
             try (Jedis tmpRsc = pool.getResource()) {
-                tmpRsc.hdel("heartbeats", configuration.getServerId());
-                if (tmpRsc.scard("proxy:" + configuration.getServerId() + ":usersOnline") > 0) {
-                    Set<String> players = tmpRsc.smembers("proxy:" + configuration.getServerId() + ":usersOnline");
-                    for (String member : players)
-                        RedisUtil.cleanUpPlayer(member, tmpRsc);
-                }
+                if (configuration.isSortedSetHeartbeats())
+                    tmpRsc.zrem("heartbeats-zset", configuration.getServerId());
+                else
+                    tmpRsc.hdel("heartbeats", configuration.getServerId());
+                tmpRsc.del("proxy:" + configuration.getServerId() + ":alive");
             }
+            cleanUpProxy(configuration.getServerId(), 0);
+
+            ioExecutor.shutdownNow();
+            if (dataStreamReader != null)
+                dataStreamReader.stop();
+            pubSubDispatcher.stop();
+            uuidTranslator.closeLocalStore();
 
             pool.destroy();
         }
@@ -505,9 +1046,12 @@ public final class RedisVelocity {
                 // Create the pool...
                 JedisPoolConfig config = new JedisPoolConfig();
                 config.setMaxTotal(pconfig.getConfig().getProperty(ProxyConfigProperties.MAXIMUM_CONNECTIONS));
+                int timeout = pconfig.getConfig().getProperty(ProxyConfigProperties.REDIS_TIMEOUT);
+                if (timeout > 0)
+                    config.setMaxWait(Duration.ofMillis(timeout));
                 if (finalRedisPassword == null)
-                        return new JedisPool(config, redisServer, redisPort, 0, useSSL);
-                return new JedisPool(config, redisServer, redisPort, 0, finalRedisPassword, useSSL);
+                        return new JedisPool(config, redisServer, redisPort, timeout, useSSL);
+                return new JedisPool(config, redisServer, redisPort, timeout, finalRedisPassword, useSSL);
             });
 
             getServer().getScheduler().buildTask(this, task).schedule();
@@ -525,9 +1069,9 @@ public final class RedisVelocity {
                 File crashFile = new File(getDataFolder().toFile(), "restarted_from_crash.txt");
                 if (crashFile.exists()) {
                     crashFile.delete();
-                } else if (rsc.hexists("heartbeats", serverId)) {
-                    try {
-                        long value = Long.parseLong(rsc.hget("heartbeats", serverId));
+                } else {
+                    Long value = getLastHeartbeat(rsc, serverId);
+                    if (value != null) {
                         long redisTime = getRedisTime(rsc.time());
                         if (redisTime < value + 20) {
                             getLogger().error("You have launched a possible impostor Velocity instance. Another instance is already running.");
@@ -535,7 +1079,7 @@ public final class RedisVelocity {
                             getLogger().error("If this instance is coming up from a crash, create a file in your RedisVelocity plugins directory with the name 'restarted_from_crash.txt' and RedisVelocity will not perform this check.");
                             throw new RuntimeException("Possible impostor instance!");
                         }
-                    } catch (NumberFormatException ignored) {}
+                    }
                 }
 
                 FutureTask<Void> task2 = new FutureTask<>(() -> {
@@ -567,26 +1111,72 @@ public final class RedisVelocity {
         }
     }
 
+    private Long getLastHeartbeat(Jedis jedis, String serverId) {
+        if (pconfig.getConfig().getProperty(ProxyConfigProperties.SORTED_SET_HEARTBEATS)) {
+            Double score = jedis.zscore("heartbeats-zset", serverId);
+            return score == null ? null : score.longValue();
+        }
+        String value = jedis.hget("heartbeats", serverId);
+        if (value == null)
+            return null;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     @NoArgsConstructor(access = AccessLevel.PRIVATE)
     class PubSubListener implements Runnable {
-        private JedisPubSubHandler jpsh;
-
-        private final Set<String> addedChannels = new HashSet<>();
+        private volatile JedisPubSubHandler jpsh;
+
+        // Everything subscribed to, subscribed again whenever the connection is replaced.
+        private final Set<String> addedChannels = ConcurrentHashMap.newKeySet();
+        private final Set<String> addedPatterns = ConcurrentHashMap.newKeySet();
+        // Channels whose messages are fired as a PubSubMessageEvent, the others only go to their handlers.
+        private final Set<String> eventChannels = ConcurrentHashMap.newKeySet();
+
+        // Delays between reconnects, doubled after every failed attempt.
+        private static final long MIN_BACKOFF = 500;
+        private static final long MAX_BACKOFF = 30000;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile boolean poisoned;
+        private volatile Thread thread;
+        private long backoff = MIN_BACKOFF;
+        private final AtomicLong reconnects = new AtomicLong();
+        // When the connection was lost, or 0 while subscribed.
+        private volatile long disconnectedSince;
+        private final AtomicLong disconnectedMillis = new AtomicLong();
 
         @Override
         public void run() {
-            boolean broken = false;
-            try (Jedis rsc = pool.getResource()) {
-                try {
-                    jpsh = new JedisPubSubHandler();
-                    addedChannels.add("redisvelocity-" + configuration.getServerId());
-                    addedChannels.add("redisvelocity-allservers");
-                    addedChannels.add("redisvelocity-data");
-                    rsc.subscribe(jpsh, addedChannels.toArray(new String[0]));
-                } catch (Exception e) {
-                    // FIXME: Extremely ugly hack
-                    // Attempt to unsubscribe this instance and try again.
-                    getLogger().info("PubSub error, attempting to recover.", e);
+            // There is only ever one subscription, however often this gets scheduled.
+            if (!running.compareAndSet(false, true))
+                return;
+            thread = Thread.currentThread();
+            try {
+                while (!poisoned) {
+                    try (Jedis rsc = pool.getResource()) {
+                        jpsh = new JedisPubSubHandler();
+                        eventChannels.add("redisvelocity-" + configuration.getServerId());
+                        eventChannels.add("redisvelocity-allservers");
+                        addedChannels.addAll(eventChannels);
+                        if (!configuration.isDataStream())
+                            addedChannels.add("redisvelocity-data");
+                        if (proxyExpiredChannel != null)
+                            addedChannels.add(proxyExpiredChannel);
+                        // Blocks for as long as the connection is subscribed.
+                        rsc.subscribe(jpsh, SafeEncoder.encodeMany(addedChannels.toArray(new String[0])));
+                        if (poisoned)
+                            return;
+                    } catch (Exception e) {
+                        if (poisoned)
+                            return;
+                        getLogger().warn("PubSub connection lost, reconnecting in about " + backoff + " ms.", e);
+                    }
+
+                    if (disconnectedSince == 0)
+                        disconnectedSince = System.currentTimeMillis();
                     try {
                         jpsh.unsubscribe();
                     } catch (Exception e1) {
@@ -595,42 +1185,161 @@ public final class RedisVelocity {
                         - redis.clients.jedis.exceptions.JedisConnectionException: JedisPubSub was not subscribed to a Jedis instance
                         */
                     }
-                    broken = true;
+                    try {
+                        // Spread out, so proxies that lost Redis together don't all come back at the same time.
+                        Thread.sleep(backoff / 2 + jitter(backoff / 2));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF);
                 }
-            } catch (JedisConnectionException e) {
-                getLogger().info("PubSub error, attempting to recover in 5 secs.");
-                getServer().getScheduler().buildTask(RedisVelocity.this, PubSubListener.this)
-                        .repeat(5, TimeUnit.SECONDS)
-                        .schedule();
+            } finally {
+                thread = null;
+                running.set(false);
             }
+        }
+
+        // Called on the subscriber thread once a new connection is subscribed.
+        private void onConnected() {
+            backoff = MIN_BACKOFF;
+            long since = disconnectedSince;
+            if (since == 0)
+                return;
+            disconnectedSince = 0;
+            reconnects.incrementAndGet();
+            disconnectedMillis.addAndGet(System.currentTimeMillis() - since);
+            getLogger().info("PubSub connection is back after " + (System.currentTimeMillis() - since) + " ms.");
+            // Player updates sent meanwhile were missed, unless they come through the data stream. Stored names
+            // are only announced through PubSub, so the filter of known names is rebuilt either way.
+            if (!configuration.isDataStream())
+                recoverMissedDataMessages();
+            else
+                executor.execute(uuidTranslator::rebuildFilter);
+        }
+
+        /**
+         * @return the number of reconnects and the total time spent without a subscribed connection
+         */
+        Map<String, Long> getStats() {
+            long since = disconnectedSince;
+            long disconnected = disconnectedMillis.get() + (since == 0 ? 0 : System.currentTimeMillis() - since);
+            return ImmutableMap.of("reconnects", reconnects.get(), "disconnected-millis", disconnected);
+        }
+
+        public synchronized void addChannel(String... channel) {
+            eventChannels.addAll(Arrays.asList(channel));
+            subscribe(channel);
+        }
 
-            if (broken) {
-                run();
+        public synchronized void removeChannel(String... channel) {
+            List<String> unused = new ArrayList<>();
+            for (String c : channel) {
+                eventChannels.remove(c);
+                if (!pubSubHandlers.hasChannel(c))
+                    unused.add(c);
             }
+            unsubscribe(unused.toArray(new String[0]));
+        }
+
+        synchronized void addHandlerChannel(String channel) {
+            subscribe(channel);
+        }
+
+        synchronized void removeHandlerChannel(String channel) {
+            if (!eventChannels.contains(channel))
+                unsubscribe(channel);
+        }
+
+        synchronized void addPattern(String pattern) {
+            if (addedPatterns.add(pattern) && isSubscribed())
+                jpsh.psubscribe(SafeEncoder.encode(pattern));
         }
 
-        public void addChannel(String... channel) {
+        synchronized void removePattern(String pattern) {
+            if (addedPatterns.remove(pattern) && isSubscribed())
+                jpsh.punsubscribe(SafeEncoder.encode(pattern));
+        }
+
+        boolean isEventChannel(String channel) {
+            return eventChannels.contains(channel);
+        }
+
+        // Channels added before the connection is up are subscribed to along with the others once it is.
+        private void subscribe(String... channel) {
             addedChannels.addAll(Arrays.asList(channel));
-            jpsh.subscribe(channel);
+            if (isSubscribed())
+                jpsh.subscribe(SafeEncoder.encodeMany(channel));
         }
 
-        public void removeChannel(String... channel) {
+        private void unsubscribe(String... channel) {
+            // Unsubscribing from nothing would unsubscribe from everything.
+            if (channel.length == 0)
+                return;
             Arrays.asList(channel).forEach(addedChannels::remove);
-            jpsh.unsubscribe(channel);
+            if (isSubscribed())
+                jpsh.unsubscribe(SafeEncoder.encodeMany(channel));
+        }
+
+        private boolean isSubscribed() {
+            return jpsh != null && jpsh.isSubscribed();
         }
 
         public void poison() {
+            poisoned = true;
             addedChannels.clear();
-            jpsh.unsubscribe();
+            addedPatterns.clear();
+            if (isSubscribed()) {
+                jpsh.unsubscribe();
+                jpsh.punsubscribe();
+            }
+            // Waiting to reconnect.
+            Thread waiting = thread;
+            if (waiting != null && !isSubscribed())
+                waiting.interrupt();
         }
     }
 
-    private class JedisPubSubHandler extends JedisPubSub {
+    // Binary, so data messages reach the DataManager as they were sent.
+    private class JedisPubSubHandler extends BinaryJedisPubSub {
+        private boolean connected;
+
         @Override
-        public void onMessage(final String s, final String s2) {
+        public void onSubscribe(byte[] channel, int subscribedChannels) {
+            if (connected)
+                return;
+            connected = true;
+            // SUBSCRIBE only takes channels, the patterns follow once the connection is subscribed.
+            if (!psl.addedPatterns.isEmpty())
+                psubscribe(SafeEncoder.encodeMany(psl.addedPatterns.toArray(new String[0])));
+            psl.onConnected();
+        }
+
+        @Override
+        public void onMessage(final byte[] channel, final byte[] message) {
+            // The data channel is internal, it goes straight to the DataManager instead of through a PubSubMessageEvent.
+            if (Arrays.equals(channel, DataMessageCodec.CHANNEL)) {
+                onDataMessage(message);
+                return;
+            }
+            final String s = SafeEncoder.encode(channel);
+            if (s.equals(proxyExpiredChannel)) {
+                String key = SafeEncoder.encode(message);
+                if (key.startsWith("proxy:") && key.endsWith(":alive"))
+                    onProxyExpired(key.substring("proxy:".length(), key.length() - ":alive".length()));
+                return;
+            }
+            // Handlers get the message as it was sent, without waking up every PubSubMessageEvent listener.
+            pubSubHandlers.handle(s, message);
+            if (!psl.isEventChannel(s))
+                return;
+            final String s2 = SafeEncoder.encode(message);
             if (s2.trim().length() == 0) return;
-            getServer().getScheduler().buildTask(RedisVelocity.this, () ->
-                    getServer().getEventManager().fire(new PubSubMessageEvent(s, s2))).schedule();
+            dispatchPubSub(s, () -> getServer().getEventManager().fire(new PubSubMessageEvent(s, s2)).join());
+        }
+
+        @Override
+        public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
+            pubSubHandlers.handlePattern(SafeEncoder.encode(pattern), SafeEncoder.encode(channel), message);
         }
     }
 
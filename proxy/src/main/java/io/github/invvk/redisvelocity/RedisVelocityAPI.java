@@ -1,16 +1,23 @@
 package io.github.invvk.redisvelocity;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
 import com.velocitypowered.api.proxy.server.ServerInfo;
 import io.github.invvk.redisvelocity.events.PubSubMessageEvent;
+import io.github.invvk.redisvelocity.util.uuid.UUIDTranslator;
 import lombok.NonNull;
 import redis.clients.jedis.JedisPool;
 
 import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * This class exposes some internal RedisVelocity functions. You obtain an instance of this object by invoking {@link RedisVelocity#getApi()}.
@@ -30,7 +37,8 @@ public class RedisVelocityAPI {
         this.reservedChannels = ImmutableList.of(
                 "redisvelocity-allservers",
                 "redisvelocity-" + RedisVelocity.getConfiguration().getServerId(),
-                "redisvelocity-data"
+                "redisvelocity-data",
+                UUIDTranslator.CHANNEL
         );
     }
 
@@ -43,6 +51,30 @@ public class RedisVelocityAPI {
         return plugin.getCount();
     }
 
+    /**
+     * Get the number of players on the server with the given name. Unlike counting
+     * {@link #getPlayersOnServer(String)}, this does not build the set of players.
+     *
+     * @param server a server name
+     * @return the number of players on this server
+     * @since 2.0.1
+     */
+    public final int getPlayerCountOnServer(@NonNull String server) {
+        return plugin.getCountOnServer(server);
+    }
+
+    /**
+     * Get the number of players on the specified proxy. Unlike counting
+     * {@link #getPlayersOnProxy(String)}, this does not build the set of players.
+     *
+     * @param proxyId a proxy ID
+     * @return the number of players on this proxy
+     * @since 2.0.1
+     */
+    public final int getPlayerCountOnProxy(@NonNull String proxyId) {
+        return plugin.getCountOnProxy(proxyId);
+    }
+
     /**
      * Get the last time a player was on. If the player is currently online, this will return 0. If the player has not been recorded,
      * this will return -1. Otherwise it will return a value in milliseconds.
@@ -51,7 +83,7 @@ public class RedisVelocityAPI {
      * @return the last time a player was on, if online returns a 0
      */
     public final long getLastOnline(@NonNull UUID player) {
-        return plugin.getDataManager().getLastOnline(player);
+        return join(getLastOnlineAsync(player));
     }
 
     /**
@@ -62,7 +94,36 @@ public class RedisVelocityAPI {
      * @return a {@link ServerInfo} for the server the player is on.
      */
     public final ServerInfo getServerFor(@NonNull UUID player) {
-        return plugin.getServer().getServer(plugin.getDataManager().getServer(player)).get().getServerInfo();
+        return join(getServerForAsync(player));
+    }
+
+    /**
+     * Get the servers of several players at once. This is much cheaper than calling {@link #getServerFor(UUID)}
+     * for each of them, as all players that are not known locally are fetched from Redis together.
+     *
+     * @param players the players to fetch the servers for
+     * @return a map from each online player to the {@link ServerInfo} of their server, offline players and
+     * players on servers unknown to this proxy are left out
+     * @since 2.0.1
+     */
+    public final Map<UUID, ServerInfo> getServersFor(@NonNull Collection<UUID> players) {
+        Map<UUID, ServerInfo> servers = new HashMap<>();
+        for (Map.Entry<UUID, String> entry : plugin.getDataManager().getServers(players).entrySet()) {
+            plugin.getServer().getServer(entry.getValue())
+                    .ifPresent(server -> servers.put(entry.getKey(), server.getServerInfo()));
+        }
+        return servers;
+    }
+
+    /**
+     * Get the RedisVelocity proxy IDs of several players at once, see {@link #getServersFor(Collection)}.
+     *
+     * @param players the players to fetch the proxies for
+     * @return a map from each online player to their proxy, offline players are left out
+     * @since 2.0.1
+     */
+    public final Map<UUID, String> getProxies(@NonNull Collection<UUID> players) {
+        return plugin.getDataManager().getProxies(players);
     }
 
     /**
@@ -84,11 +145,7 @@ public class RedisVelocityAPI {
      * @since 0.3
      */
     public final Collection<String> getHumanPlayersOnline() {
-        Set<String> names = new HashSet<>();
-        for (UUID uuid : getPlayersOnline()) {
-            names.add(getNameFromUuid(uuid, false));
-        }
-        return names;
+        return new HashSet<>(getNamesFromUuids(getPlayersOnline(), false).values());
     }
 
     /**
@@ -101,6 +158,17 @@ public class RedisVelocityAPI {
         return plugin.serversToPlayers();
     }
 
+    /**
+     * Get a full list of players on all servers, along with how fresh it is. Unless the network state mirror is
+     * enabled, this is a snapshot refreshed in the background every {@code server-to-players-refresh} seconds.
+     *
+     * @return the last snapshot of the players on each server
+     * @since 2.0.1
+     */
+    public final ServerToPlayersSnapshot getServerToPlayersSnapshot() {
+        return plugin.getServerToPlayersSnapshot();
+    }
+
     /**
      * Get a list of players on the server with the given name.
      *
@@ -108,7 +176,7 @@ public class RedisVelocityAPI {
      * @return a Set with all players found on this server
      */
     public final Set<UUID> getPlayersOnServer(@NonNull String server) {
-        return ImmutableSet.copyOf(getServerToPlayers().get(server));
+        return plugin.getPlayersOnServer(server);
     }
 
     /**
@@ -118,7 +186,7 @@ public class RedisVelocityAPI {
      * @return a Set with all UUIDs found on this proxy
      */
     public final Set<UUID> getPlayersOnProxy(@NonNull String server) {
-        return plugin.getPlayersOnProxy(server);
+        return join(getPlayersOnProxyAsync(server));
     }
 
     /**
@@ -139,7 +207,19 @@ public class RedisVelocityAPI {
      * @since 0.2.4
      */
     public final InetAddress getPlayerIp(@NonNull UUID player) {
-        return plugin.getDataManager().getIp(player);
+        return join(getPlayerIpAsync(player));
+    }
+
+    /**
+     * Get everything RedisVelocity knows about a player, their server, proxy, IP and last online time, at once.
+     * Prefer this over calling the separate getters when you need more than one of them.
+     *
+     * @param player the player to fetch the record for
+     * @return the record of the player, or null if they were never recorded
+     * @since 2.0.1
+     */
+    public final PlayerRecord getPlayerRecord(@NonNull UUID player) {
+        return plugin.getDataManager().getPlayerRecord(player);
     }
 
     /**
@@ -150,7 +230,118 @@ public class RedisVelocityAPI {
      * @since 0.3.3
      */
     public final String getProxy(@NonNull UUID player) {
-        return plugin.getDataManager().getProxy(player);
+        return join(getProxyAsync(player));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getLastOnline(UUID)}.
+     * <p>
+     * Like all asynchronous methods, this runs on a dedicated RedisVelocity thread pool. The future fails with a
+     * {@link java.util.concurrent.TimeoutException} if Redis doesn't answer within the configured {@code async-api-timeout},
+     * and should not be completed with blocking calls on Velocity's event threads. The synchronous methods wait for
+     * these futures, so they fail the same way. Lookups at Mojang are only bounded by their own timeout.
+     *
+     * @param player a player UUID
+     * @return a future for the last time a player was on
+     * @since 2.0.1
+     */
+    public final CompletableFuture<Long> getLastOnlineAsync(@NonNull UUID player) {
+        return supplyAsync(() -> plugin.getDataManager().getLastOnline(player));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getServerFor(UUID)}.
+     *
+     * @param player a player UUID
+     * @return a future for the {@link ServerInfo} of the server the player is on
+     * @see #getLastOnlineAsync(UUID)
+     * @since 2.0.1
+     */
+    public final CompletableFuture<ServerInfo> getServerForAsync(@NonNull UUID player) {
+        return supplyAsync(() -> plugin.getServer().getServer(plugin.getDataManager().getServer(player)).get().getServerInfo());
+    }
+
+    /**
+     * Asynchronous variant of {@link #getProxy(UUID)}.
+     *
+     * @param player a player UUID
+     * @return a future for the proxy the player is connected to
+     * @see #getLastOnlineAsync(UUID)
+     * @since 2.0.1
+     */
+    public final CompletableFuture<String> getProxyAsync(@NonNull UUID player) {
+        return supplyAsync(() -> plugin.getDataManager().getProxy(player));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getPlayerIp(UUID)}.
+     *
+     * @param player a player UUID
+     * @return a future for the {@link InetAddress} of the player
+     * @see #getLastOnlineAsync(UUID)
+     * @since 2.0.1
+     */
+    public final CompletableFuture<InetAddress> getPlayerIpAsync(@NonNull UUID player) {
+        return supplyAsync(() -> plugin.getDataManager().getIp(player));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getPlayersOnProxy(String)}.
+     *
+     * @param server a proxy ID
+     * @return a future for the UUIDs found on this proxy
+     * @see #getLastOnlineAsync(UUID)
+     * @since 2.0.1
+     */
+    public final CompletableFuture<Set<UUID>> getPlayersOnProxyAsync(@NonNull String server) {
+        return supplyAsync(() -> plugin.getPlayersOnProxy(server));
+    }
+
+    /**
+     * Asynchronous variant of {@link #getNameFromUuid(UUID, boolean)}.
+     *
+     * @param uuid             the UUID to fetch the name for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a future for the name of the UUID
+     * @see #getLastOnlineAsync(UUID)
+     * @since 2.0.1
+     */
+    public final CompletableFuture<String> getNameFromUuidAsync(@NonNull UUID uuid, boolean expensiveLookups) {
+        return supplyAsync(() -> plugin.getUuidTranslator().getNameFromUuid(uuid, expensiveLookups), !expensiveLookups);
+    }
+
+    /**
+     * Asynchronous variant of {@link #getUuidFromName(String, boolean)}.
+     *
+     * @param name             the name to fetch the UUID for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a future for the UUID of the name
+     * @see #getLastOnlineAsync(UUID)
+     * @since 2.0.1
+     */
+    public final CompletableFuture<UUID> getUuidFromNameAsync(@NonNull String name, boolean expensiveLookups) {
+        return supplyAsync(() -> plugin.getUuidTranslator().getTranslatedUuid(name, expensiveLookups), !expensiveLookups);
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        return supplyAsync(supplier, true);
+    }
+
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier, boolean timeout) {
+        CompletableFuture<T> future = CompletableFuture.supplyAsync(supplier, plugin.getIoExecutor());
+        if (!timeout)
+            return future;
+        return future.orTimeout(RedisVelocity.getConfiguration().getAsyncApiTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    // Rethrows what the lookup threw, rather than the CompletionException wrapping it.
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
     }
 
     /**
@@ -234,6 +425,74 @@ public class RedisVelocityAPI {
         RedisVelocity.getPubSubListener().removeChannel(channels);
     }
 
+    /**
+     * Register a handler for the messages on a PubSub channel, subscribing to it if needed. Messages on the channel
+     * are decoded with the codec and passed straight to the handler, without firing a {@link PubSubMessageEvent},
+     * unless the channel was also registered with {@link #registerPubSubChannels(String...)}.
+     *
+     * @param channel  the channel to handle
+     * @param codec    how the messages are decoded
+     * @param handler  the handler of the messages
+     * @param executor where the handler runs, or null to run it on the PubSub threads of RedisVelocity, which
+     *                 handle the messages of a channel in the order they arrived
+     * @return the registration, to unregister the handler with
+     * @since 2.0.1
+     */
+    public final <T> PubSubRegistration registerPubSubHandler(@NonNull String channel, @NonNull PubSubCodec<T> codec,
+                                                              @NonNull PubSubHandler<T> handler, Executor executor) {
+        Preconditions.checkArgument(!reservedChannels.contains(channel), "attempting to register a handler for an internal channel");
+        return plugin.getPubSubHandlers().register(channel, false, codec, handler, executor);
+    }
+
+    /**
+     * Register a handler for the text messages on a PubSub channel, run on the PubSub threads of RedisVelocity.
+     *
+     * @param channel the channel to handle
+     * @param handler the handler of the messages
+     * @return the registration, to unregister the handler with
+     * @see #registerPubSubHandler(String, PubSubCodec, PubSubHandler, Executor)
+     * @since 2.0.1
+     */
+    public final PubSubRegistration registerPubSubHandler(@NonNull String channel, @NonNull PubSubHandler<String> handler) {
+        return registerPubSubHandler(channel, PubSubCodec.STRING, handler, null);
+    }
+
+    /**
+     * Register a handler for the messages on all PubSub channels matching a pattern (PSUBSCRIBE), subscribing to it
+     * if needed. The handler is told which channel each message was sent to.
+     *
+     * @param pattern  the pattern, in the glob-style syntax of Redis, which must not match any internal channel
+     * @param codec    how the messages are decoded
+     * @param handler  the handler of the messages
+     * @param executor where the handler runs, or null to run it on the PubSub threads of RedisVelocity, which
+     *                 handle the messages of a channel in the order they arrived
+     * @return the registration, to unregister the handler with
+     * @since 2.0.1
+     */
+    public final <T> PubSubRegistration registerPubSubPatternHandler(@NonNull String pattern, @NonNull PubSubCodec<T> codec,
+                                                                     @NonNull PubSubHandler<T> handler, Executor executor) {
+        for (String channel : reservedChannels) {
+            Preconditions.checkArgument(!PubSubHandlers.matches(pattern, channel), "attempting to register a handler for a pattern matching internal channel " + channel);
+        }
+        // The command channels of the other proxies are internal as well.
+        for (String proxy : plugin.getServerIds()) {
+            Preconditions.checkArgument(!PubSubHandlers.matches(pattern, "redisvelocity-" + proxy), "attempting to register a handler for a pattern matching internal channel redisvelocity-" + proxy);
+        }
+        return plugin.getPubSubHandlers().register(pattern, true, codec, handler, executor);
+    }
+
+    /**
+     * Sends a message to a PubSub channel, encoded with the codec its handlers were registered with.
+     *
+     * @param channel the PubSub channel
+     * @param codec   how the message is encoded
+     * @param message the message to send
+     * @since 2.0.1
+     */
+    public final <T> void sendChannelMessage(@NonNull String channel, @NonNull PubSubCodec<T> codec, @NonNull T message) {
+        plugin.sendChannelMessage(channel, codec.encode(message));
+    }
+
     /**
      * Fetch a name from the specified UUID. UUIDs are cached locally and in Redis. This function falls back to Mojang
      * as a last resort, so calls <strong>may</strong> be blocking.
@@ -264,7 +523,21 @@ public class RedisVelocityAPI {
      * @since 0.3.2
      */
     public final String getNameFromUuid(@NonNull UUID uuid, boolean expensiveLookups) {
-        return plugin.getUuidTranslator().getNameFromUuid(uuid, expensiveLookups);
+        return join(getNameFromUuidAsync(uuid, expensiveLookups));
+    }
+
+    /**
+     * Fetch the names of several UUIDs at once. Local entries are used first, the remaining ones are fetched from
+     * Redis in a single call. If {@code expensiveLookups} is true, UUIDs still unknown after that are looked up at
+     * Mojang, so calls <strong>may</strong> be blocking.
+     *
+     * @param uuids            the UUIDs to fetch the names for
+     * @param expensiveLookups whether or not to perform potentially expensive lookups
+     * @return a map from UUID to name, UUIDs without a known name are left out
+     * @since 2.0.1
+     */
+    public final Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> uuids, boolean expensiveLookups) {
+        return plugin.getUuidTranslator().getNamesFromUuids(uuids, expensiveLookups);
     }
 
     /**
@@ -298,7 +571,31 @@ public class RedisVelocityAPI {
      * @since 0.3.2
      */
     public final UUID getUuidFromName(@NonNull String name, boolean expensiveLookups) {
-        return plugin.getUuidTranslator().getTranslatedUuid(name, expensiveLookups);
+        return join(getUuidFromNameAsync(name, expensiveLookups));
+    }
+
+    /**
+     * Get the statistics of the local RedisVelocity caches, such as their hit rate and number of evictions, to help
+     * sizing them with the cache settings in the configuration.
+     *
+     * @return the statistics of each cache by its name
+     * @since 2.0.1
+     */
+    public final Map<String, CacheStats> getCacheStats() {
+        return plugin.getCacheStats();
+    }
+
+    /**
+     * Get the statistics of the incoming PubSub messages: how many are waiting to be handled ("queued", and
+     * "longest-queue" for the busiest thread), how many were handled and how many were dropped because the
+     * queues were full. Also how often the subscriber reconnected ("reconnects") and how long it was without a
+     * connection in total ("disconnected-millis").
+     *
+     * @return the statistics by name
+     * @since 2.0.1
+     */
+    public final Map<String, Long> getPubSubStats() {
+        return plugin.getPubSubStats();
     }
 
     /**
@@ -1,6 +1,7 @@
 package io.github.invvk.redisvelocity;
 
 import com.google.common.base.Joiner;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.velocitypowered.api.command.CommandSource;
@@ -54,9 +55,10 @@ class RedisVelocityCommands {
                         .deserialize("&e" + playerPlural(count) + " currently online.");
                 if (args.length > 0 && args[0].equals("showall")) {
                     Multimap<String, UUID> serverToPlayers = RedisVelocityAPI.getRedisVelocityApi().getServerToPlayers();
+                    Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(serverToPlayers.values(), false);
                     Multimap<String, String> human = HashMultimap.create();
                     for (Map.Entry<String, UUID> entry : serverToPlayers.entries()) {
-                        human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
+                        human.put(entry.getKey(), names.get(entry.getValue()));
                     }
                     for (String server : new TreeSet<>(serverToPlayers.keySet())) {
                         TextComponent msg = LegacyComponentSerializer
@@ -322,10 +324,11 @@ class RedisVelocityCommands {
                 TextComponent playersOnline = LegacyComponentSerializer.legacyAmpersand().deserialize(("&e" + playerPlural(players.size()) + " currently on proxy " + proxy + "."));
                 if (args.length >= 2 && args[1].equals("showall")) {
                     Multimap<String, UUID> serverToPlayers = RedisVelocityAPI.getRedisVelocityApi().getServerToPlayers();
+                    Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(players, false);
                     Multimap<String, String> human = HashMultimap.create();
                     for (Map.Entry<String, UUID> entry : serverToPlayers.entries()) {
                         if (players.contains(entry.getValue())) {
-                            human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
+                            human.put(entry.getKey(), names.get(entry.getValue()));
                         }
                     }
                     for (String server : new TreeSet<>(human.keySet())) {
@@ -365,6 +368,19 @@ class RedisVelocityCommands {
             sender.sendMessage(poolActiveStat);
             sender.sendMessage(poolIdleStat);
             sender.sendMessage(poolWaitingStat);
+            Map<String, Long> sizes = plugin.getCacheSizes();
+            for (Map.Entry<String, CacheStats> entry : plugin.getCacheStats().entrySet()) {
+                CacheStats stats = entry.getValue();
+                sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(String.format(
+                        "Cache %s: %d entries, %d hits, %d misses (%.1f%% hit rate), %d evictions, %.2f ms average load time",
+                        entry.getKey(), sizes.get(entry.getKey()), stats.hitCount(), stats.missCount(), stats.hitRate() * 100,
+                        stats.evictionCount(), stats.averageLoadPenalty() / 1_000_000)));
+            }
+            Map<String, Long> pubSub = plugin.getPubSubStats();
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(String.format(
+                    "PubSub: %d queued (longest queue %d), %d handled, %d dropped, %d reconnects, %.1f s disconnected",
+                    pubSub.get("queued"), pubSub.get("longest-queue"), pubSub.get("handled"), pubSub.get("dropped"),
+                    pubSub.get("reconnects"), pubSub.get("disconnected-millis") / 1000.0)));
         }
 
         @Override
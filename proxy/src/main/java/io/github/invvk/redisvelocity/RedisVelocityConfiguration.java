@@ -19,6 +19,48 @@ public class RedisVelocityConfiguration {
     private final boolean registerBungeeCommands;
     @Getter
     private final List<InetAddress> exemptAddresses;
+    @Getter
+    private final int heartbeatInterval;
+    @Getter
+    private final int heartbeatTimeout;
+    @Getter
+    private final boolean keyspaceFailureDetection;
+    @Getter
+    private final boolean sortedSetHeartbeats;
+    @Getter
+    private final boolean networkStateMirror;
+    @Getter
+    private final int networkStateResyncInterval;
+    @Getter
+    private final int leaderLease;
+    @Getter
+    private final int asyncApiTimeout;
+    @Getter
+    private final String playerRecordCache;
+    @Getter
+    private final String unknownPlayerCache;
+    @Getter
+    private final int serverToPlayersRefresh;
+    @Getter
+    private final boolean clientSideCaching;
+    @Getter
+    private final int uuidCacheSize;
+    @Getter
+    private final int knownNamesFilterSize;
+    @Getter
+    private final int localUuidStoreSize;
+    @Getter
+    private final boolean binaryDataMessages;
+    @Getter
+    private final boolean bulkLeaveMessages;
+    @Getter
+    private final int pubSubLanes;
+    @Getter
+    private final int pubSubQueueSize;
+    @Getter
+    private final boolean dataStream;
+    @Getter
+    private final int dataStreamLength;
 
 
     public RedisVelocityConfiguration(JedisPool pool, ProxyConfiguration configuration, String randomUUID) {
@@ -39,6 +81,38 @@ public class RedisVelocityConfiguration {
         }
 
         this.exemptAddresses = addressBuilder.build();
+
+        this.heartbeatInterval = configuration.getConfig().getProperty(ProxyConfigProperties.HEARTBEAT_INTERVAL);
+        this.heartbeatTimeout = configuration.getConfig().getProperty(ProxyConfigProperties.HEARTBEAT_TIMEOUT);
+        this.keyspaceFailureDetection = configuration.getConfig().getProperty(ProxyConfigProperties.KEYSPACE_FAILURE_DETECTION);
+        this.sortedSetHeartbeats = configuration.getConfig().getProperty(ProxyConfigProperties.SORTED_SET_HEARTBEATS);
+        this.networkStateMirror = configuration.getConfig().getProperty(ProxyConfigProperties.NETWORK_STATE_MIRROR);
+        this.networkStateResyncInterval = configuration.getConfig().getProperty(ProxyConfigProperties.NETWORK_STATE_RESYNC_INTERVAL);
+        this.leaderLease = configuration.getConfig().getProperty(ProxyConfigProperties.LEADER_LEASE);
+        this.asyncApiTimeout = configuration.getConfig().getProperty(ProxyConfigProperties.ASYNC_API_TIMEOUT);
+        this.playerRecordCache = configuration.getConfig().getProperty(ProxyConfigProperties.PLAYER_RECORD_CACHE);
+        this.unknownPlayerCache = configuration.getConfig().getProperty(ProxyConfigProperties.UNKNOWN_PLAYER_CACHE);
+        // Guava can only refresh caches that load their own entries, which the unknown player cache doesn't.
+        if (hasCacheSetting(unknownPlayerCache, "refreshAfterWrite"))
+            throw new IllegalArgumentException("unknown-player-cache doesn't support refreshAfterWrite, remove it from \"" + unknownPlayerCache + "\"");
+        this.serverToPlayersRefresh = configuration.getConfig().getProperty(ProxyConfigProperties.SERVER_TO_PLAYERS_REFRESH);
+        this.clientSideCaching = configuration.getConfig().getProperty(ProxyConfigProperties.CLIENT_SIDE_CACHING);
+        this.uuidCacheSize = configuration.getConfig().getProperty(ProxyConfigProperties.UUID_CACHE_SIZE);
+        this.knownNamesFilterSize = configuration.getConfig().getProperty(ProxyConfigProperties.KNOWN_NAMES_FILTER_SIZE);
+        this.localUuidStoreSize = configuration.getConfig().getProperty(ProxyConfigProperties.LOCAL_UUID_STORE_SIZE);
+        this.binaryDataMessages = configuration.getConfig().getProperty(ProxyConfigProperties.BINARY_DATA_MESSAGES);
+        this.bulkLeaveMessages = configuration.getConfig().getProperty(ProxyConfigProperties.BULK_LEAVE_MESSAGES);
+        this.pubSubLanes = configuration.getConfig().getProperty(ProxyConfigProperties.PUBSUB_LANES);
+        this.pubSubQueueSize = configuration.getConfig().getProperty(ProxyConfigProperties.PUBSUB_QUEUE_SIZE);
+        this.dataStream = configuration.getConfig().getProperty(ProxyConfigProperties.DATA_STREAM);
+        this.dataStreamLength = configuration.getConfig().getProperty(ProxyConfigProperties.DATA_STREAM_LENGTH);
     }
 
+    private static boolean hasCacheSetting(String spec, String key) {
+        for (String setting : spec.split(",")) {
+            if (setting.split("=", 2)[0].trim().equals(key))
+                return true;
+        }
+        return false;
+    }
 }
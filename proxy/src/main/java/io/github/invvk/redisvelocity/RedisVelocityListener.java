@@ -2,12 +2,12 @@ package io.github.invvk.redisvelocity;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Multiset;
 import com.google.common.io.ByteArrayDataInput;
 import com.google.common.io.ByteArrayDataOutput;
 import com.google.common.io.ByteStreams;
-import io.github.invvk.redisvelocity.events.PubSubMessageEvent;
 import io.github.invvk.redisvelocity.util.RedisCallable;
 import com.velocitypowered.api.event.PostOrder;
 import com.velocitypowered.api.event.ResultedEvent;
@@ -25,6 +25,7 @@ import net.kyori.adventure.text.Component;
 import net.kyori.adventure.text.TextComponent;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 import java.net.InetAddress;
 import java.util.*;
@@ -86,13 +87,13 @@ public class RedisVelocityListener {
                 // which will register the player into the redis database.
                 Pipeline pipeline = jedis.pipelined();
                 plugin.getUuidTranslator().persistInfo(event.getPlayer().getUsername(), event.getPlayer().getUniqueId(), pipeline);
-                RedisUtil.createPlayer(event.getPlayer(), pipeline, false);
+                Response<Long> sequence = RedisUtil.createPlayer(event.getPlayer(), pipeline);
                 pipeline.sync();
                 // the end of moved code.
 
-                jedis.publish("redisvelocity-data", RedisVelocity.getGson().toJson(new DataManager.DataManagerMessage<>(
-                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.JOIN,
-                        new DataManager.LoginPayload(event.getPlayer().getRemoteAddress().getAddress()))));
+                RedisUtil.publishData(jedis, new DataManager.DataManagerMessage<>(
+                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.JOIN, sequence.get(),
+                        new DataManager.LoginPayload(event.getPlayer().getRemoteAddress().getAddress(), event.getPlayer().getUsername())));
                 return null;
             }
         }).schedule();
@@ -100,12 +101,19 @@ public class RedisVelocityListener {
 
     @Subscribe
     public void onPlayerDisconnect(final DisconnectEvent event) {
+        final String server = event.getPlayer().getCurrentServer().isPresent()
+                ? event.getPlayer().getCurrentServer().get().getServerInfo().getName() : null;
         plugin.getServer().getScheduler().buildTask(plugin, new RedisCallable<Void>(plugin) {
             @Override
             protected Void call(Jedis jedis) {
                 Pipeline pipeline = jedis.pipelined();
-                RedisUtil.cleanUpPlayer(event.getPlayer().getUniqueId().toString(), pipeline);
+                long timestamp = System.currentTimeMillis();
+                Response<Long> sequence = RedisUtil.cleanUpPlayer(event.getPlayer().getUniqueId().toString(), server, pipeline, timestamp);
                 pipeline.sync();
+
+                RedisUtil.publishData(jedis, new DataManager.DataManagerMessage<>(
+                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.LEAVE, sequence.get(),
+                        new DataManager.LogoutPayload(timestamp)));
                 return null;
             }
         }).schedule();
@@ -113,16 +121,21 @@ public class RedisVelocityListener {
 
     @Subscribe
     public void onServerChange(final ServerConnectedEvent event) {
-        final String currentServer = event.getPlayer().getCurrentServer().isPresent()
-                ? event.getPlayer().getCurrentServer().get().getServer()
-                .getServerInfo().getName() : null;
+        final String server = event.getServer().getServerInfo().getName();
         plugin.getServer().getScheduler().buildTask(plugin, new RedisCallable<Void>(plugin) {
             @Override
+            @SuppressWarnings("unchecked")
             protected Void call(Jedis jedis) {
-                jedis.hset("player:" + event.getPlayer().getUniqueId().toString(), "server", event.getServer().getServerInfo().getName());
-                jedis.publish("redisvelocity-data", RedisVelocity.getGson().toJson(new DataManager.DataManagerMessage<>(
-                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.SERVER_CHANGE,
-                        new DataManager.ServerChangePayload(event.getServer().getServerInfo().getName(), currentServer))));
+                // One script, so a disconnect cleaned up first isn't undone, see move_to_server.lua.
+                List<Object> moved = (List<Object>) plugin.getMoveToServerScript().eval(ImmutableList.of(),
+                        ImmutableList.of(event.getPlayer().getUniqueId().toString(), RedisVelocity.getConfiguration().getServerId(), server));
+                if (moved == null)
+                    return null;
+                String oldServer = (String) moved.get(1);
+
+                RedisUtil.publishData(jedis, new DataManager.DataManagerMessage<>(
+                        event.getPlayer().getUniqueId(), DataManager.DataManagerMessage.Action.SERVER_CHANGE, (Long) moved.get(0),
+                        new DataManager.ServerChangePayload(server, oldServer.isEmpty() ? null : oldServer)));
                 return null;
             }
         }).schedule();
@@ -164,9 +177,7 @@ public class RedisVelocityListener {
                             } catch (IllegalArgumentException ignored) {
                             }
                         }
-                        Set<String> players = new HashSet<>();
-                        for (UUID uuid : original)
-                            players.add(plugin.getUuidTranslator().getNameFromUuid(uuid, false));
+                        Set<String> players = new HashSet<>(plugin.getUuidTranslator().getNamesFromUuids(original, false).values());
                         out.writeUTF(Joiner.on(',').join(players));
                         break;
                     case "PlayerCount":
@@ -177,11 +188,7 @@ public class RedisVelocityListener {
                             out.writeInt(plugin.getCount());
                         } else {
                             out.writeUTF(type);
-                            try {
-                                out.writeInt(RedisVelocityAPI.getRedisVelocityApi().getPlayersOnServer(type).size());
-                            } catch (IllegalArgumentException e) {
-                                out.writeInt(0);
-                            }
+                            out.writeInt(RedisVelocityAPI.getRedisVelocityApi().getPlayerCountOnServer(type));
                         }
                         break;
                     case "LastOnline":
@@ -212,9 +219,10 @@ public class RedisVelocityListener {
                         out.writeUTF(type1);
 
                         if (includesUsers) {
+                            Map<UUID, String> names = plugin.getUuidTranslator().getNamesFromUuids(multimap.values(), false);
                             Multimap<String, String> human = HashMultimap.create();
                             for (Map.Entry<String, UUID> entry : multimap.entries()) {
-                                human.put(entry.getKey(), plugin.getUuidTranslator().getNameFromUuid(entry.getValue(), false));
+                                human.put(entry.getKey(), names.get(entry.getValue()));
                             }
                             serializeMultimap(human, true, out);
                         } else {
@@ -269,15 +277,4 @@ public class RedisVelocityListener {
             output.writeUTF(o.toString());
         }
     }
-
-    @Subscribe
-    public void onPubSubMessage(PubSubMessageEvent event) {
-        if (event.getChannel().equals("redisvelocity-allservers") || event.getChannel().equals("redisvelocity-" + RedisVelocityAPI.getRedisVelocityApi().getServerId())) {
-            String message = event.getMessage();
-            if (message.startsWith("/"))
-                message = message.substring(1);
-            plugin.getLogger().info("Invoking command via PubSub: /" + message);
-            plugin.getServer().getCommandManager().executeAsync(plugin.getServer().getConsoleCommandSource(), message);
-        }
-    }
 }
@@ -0,0 +1,31 @@
+package io.github.invvk.redisvelocity;
+
+import com.google.common.collect.Multimap;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.UUID;
+
+/**
+ * The players on each server of the network at some point in time.
+ *
+ * @since 2.0.1
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PACKAGE)
+public final class ServerToPlayersSnapshot {
+    /**
+     * An immutable Multimap from server name to the players on it.
+     */
+    private final Multimap<String, UUID> players;
+    /**
+     * Increases with every snapshot read from Redis. Snapshots of the network state mirror are always current
+     * and have version 0.
+     */
+    private final long version;
+    /**
+     * When the snapshot was taken, in milliseconds.
+     */
+    private final long timestamp;
+}
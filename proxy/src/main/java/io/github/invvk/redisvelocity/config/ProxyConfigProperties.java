@@ -19,6 +19,9 @@ public class ProxyConfigProperties implements SettingsHolder {
             "The default is 8. This setting should be left as-is unless you have some wildly",
             "inefficient plugins or a lot of players."})
     public static final Property<Integer> MAXIMUM_CONNECTIONS = new IntegerProperty("max-redis-connections", 8);
+    @Comment({"How long (in milliseconds) a Redis command, or waiting for a free connection, may take before it fails.",
+            "Without it a Redis server that stops answering blocks the calling threads forever. 0 waits forever."})
+    public static final Property<Integer> REDIS_TIMEOUT = new IntegerProperty("redis-timeout", 5000);
     @Comment({"since redis can support ssl by version 6 you can use ssl in redis bungee too! ", "you must disable this if redis version is under 6 you must disable this or connection wont work!!!"})
     public static final Property<Boolean> SSL = new BooleanProperty("useSSL", false);
     @Comment("An identifier for this BungeeCord instance. Will randomly generate if leaving it blank.")
@@ -32,6 +35,71 @@ public class ProxyConfigProperties implements SettingsHolder {
     public static final Property<Boolean> USE_RANDOM_ID = new BooleanProperty("use-random-id-string", false);
     public static final Property<Boolean> REGISTER_BUNGEE_COMMANDS = new BooleanProperty("register-bungee-commands", true);
     public static final ListProperty<String> EXEMPT_IP_ADDRESS = new StringListProperty("exempt-ip-addresses", Collections.emptyList());
+    @Comment("How often (in seconds) this proxy sends a heartbeat.")
+    public static final Property<Integer> HEARTBEAT_INTERVAL = new IntegerProperty("heartbeat-interval", 3);
+    @Comment({"After how many seconds without a heartbeat a proxy is considered dead and its players are cleaned up.",
+            "Keep this several times the heartbeat interval, and the same on all proxies."})
+    public static final Property<Integer> HEARTBEAT_TIMEOUT = new IntegerProperty("heartbeat-timeout", 30);
+    @Comment({"Also detect dead proxies through expired key events on a per-proxy key that expires after heartbeat-timeout,",
+            "so cleanup starts as soon as Redis expires the key. RedisVelocity tries to enable the events",
+            "(notify-keyspace-events Ex) on the Redis server, if that is not allowed you have to enable them yourself."})
+    public static final Property<Boolean> KEYSPACE_FAILURE_DETECTION = new BooleanProperty("keyspace-failure-detection", false);
+    @Comment({"Keep proxy heartbeats in a sorted set scored by Redis time instead of the heartbeats hash.",
+            "Each heartbeat is then a single script call that also prunes dead proxies and returns the player counts.",
+            "All proxies of a network must use the same setting."})
+    public static final Property<Boolean> SORTED_SET_HEARTBEATS = new BooleanProperty("sorted-set-heartbeats", false);
+    @Comment({"Keep an in-memory mirror of which players are on which proxy and server, updated from the",
+            "join, leave and server change messages of the network. Player lists are then answered locally instead of from Redis."})
+    public static final Property<Boolean> NETWORK_STATE_MIRROR = new BooleanProperty("network-state-mirror", true);
+    @Comment("How often (in minutes) the mirror is fully resynced from Redis, as a safety net against lost messages.")
+    public static final Property<Integer> NETWORK_STATE_RESYNC_INTERVAL = new IntegerProperty("network-state-resync-interval", 5);
+    @Comment({"How long (in seconds) the leader lease lasts. One proxy of the network is elected leader and runs",
+            "network-wide maintenance, such as cleaning up dead proxies, the others take over if it stops renewing its lease."})
+    public static final Property<Integer> LEADER_LEASE = new IntegerProperty("leader-lease", 15);
+    @Comment({"How long (in milliseconds) the asynchronous API methods wait for Redis before their future fails",
+            "with a TimeoutException."})
+    public static final Property<Integer> ASYNC_API_TIMEOUT = new IntegerProperty("async-api-timeout", 2000);
+    @Comment({"Specifications of the local caches, as comma separated maximumSize, expireAfterWrite, expireAfterAccess",
+            "and refreshAfterWrite settings, e.g. \"maximumSize=50000,expireAfterWrite=1h,refreshAfterWrite=5m\".",
+            "Durations take a d, h, m or s suffix. Their hit, miss, eviction and load time statistics are shown by /rdebug.",
+            "player-record-cache holds the server, proxy, IP and last online time of players on other proxies.",
+            "refreshAfterWrite is only supported there, it reloads records in the background while serving the old one."})
+    public static final Property<String> PLAYER_RECORD_CACHE = new StringProperty("player-record-cache", "maximumSize=1000,expireAfterWrite=1h");
+    @Comment("Remembers players that were never on the network, so repeated lookups for them don't go to Redis.")
+    public static final Property<String> UNKNOWN_PLAYER_CACHE = new StringProperty("unknown-player-cache", "maximumSize=1000,expireAfterWrite=30s");
+    @Comment("How many names and UUIDs are kept in memory, each. Least frequently used entries are evicted first.")
+    public static final Property<Integer> UUID_CACHE_SIZE = new IntegerProperty("uuid-cache-size", 10000);
+    @Comment({"How many names and UUIDs the filter of known players is sized for. Lookups for names and UUIDs that were never",
+            "seen on the network are answered from this filter without asking Redis. Use at least the number of entries in uuid-cache."})
+    public static final Property<Integer> KNOWN_NAMES_FILTER_SIZE = new IntegerProperty("known-names-filter-size", 1000000);
+    @Comment({"Let Redis tell this proxy whenever a cached player changes (CLIENT TRACKING), so player records can't go stale",
+            "and player-record-cache can keep them much longer. Uses two extra connections from the pool."})
+    public static final Property<Boolean> CLIENT_SIDE_CACHING = new BooleanProperty("client-side-caching", false);
+    @Comment({"How often (in seconds) the players on each server are refreshed in the background when network-state-mirror",
+            "is disabled. Callers always get the last snapshot right away."})
+    public static final Property<Integer> SERVER_TO_PLAYERS_REFRESH = new IntegerProperty("server-to-players-refresh", 5);
+    @Comment({"How many names and UUIDs are also kept in uuid-store.dat in the plugin folder, so they are still known after a",
+            "restart. The file is memory mapped outside of the Java heap and takes 96 bytes per entry. 0 disables it."})
+    public static final Property<Integer> LOCAL_UUID_STORE_SIZE = new IntegerProperty("local-uuid-store-size", 0);
+    @Comment({"Send player updates to the other proxies in a compact binary format instead of JSON. Both formats are always",
+            "understood, only enable this once every proxy on the network runs a version that reads the binary one."})
+    public static final Property<Boolean> BINARY_DATA_MESSAGES = new BooleanProperty("binary-data-messages", false);
+    @Comment({"Announce the players of a dead proxy in one message per cleanup batch instead of one message per player.",
+            "Only enable this once every proxy on the network runs a version that understands it, older ones would",
+            "otherwise keep those players online."})
+    public static final Property<Boolean> BULK_LEAVE_MESSAGES = new BooleanProperty("bulk-leave-messages", false);
+    @Comment({"How many threads handle incoming PubSub messages. Messages of the same player, or of the same channel for",
+            "custom channels, are always handled by the same thread in the order they arrived."})
+    public static final Property<Integer> PUBSUB_LANES = new IntegerProperty("pubsub-lanes", 4);
+    @Comment({"How many messages each of those threads can have waiting. Messages that don't fit are dropped, the number",
+            "of dropped messages is shown by /rdebug. Dropped player updates make this proxy resync from Redis."})
+    public static final Property<Integer> PUBSUB_QUEUE_SIZE = new IntegerProperty("pubsub-queue-size", 10000);
+    @Comment({"Send player updates through a Redis stream instead of PubSub. A proxy that lost its connection to Redis then",
+            "catches up on exactly what it missed, instead of serving stale data. Enable it on every proxy at the same time."})
+    public static final Property<Boolean> DATA_STREAM = new BooleanProperty("data-stream", false);
+    @Comment({"About how many player updates the stream keeps. A proxy that was disconnected for longer than it takes to send",
+            "this many resyncs from Redis instead."})
+    public static final Property<Integer> DATA_STREAM_LENGTH = new IntegerProperty("data-stream-length", 100000);
 
     @Override
     public void registerComments(CommentsConfiguration conf) {
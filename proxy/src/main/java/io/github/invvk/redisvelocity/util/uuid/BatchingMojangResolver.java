@@ -0,0 +1,275 @@
+package io.github.invvk.redisvelocity.util.uuid;
+
+import com.google.common.collect.Iterables;
+import com.google.gson.reflect.TypeToken;
+import com.squareup.okhttp.*;
+import io.github.invvk.redisvelocity.RedisVelocity;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The default {@link MojangResolver}.
+ * <p>
+ * Names looked up within a short window are sent together in one request to the profiles endpoint, which takes up to
+ * 100 names at once. Concurrent lookups for the same name or UUID share one request. Requests are rate limited by a
+ * token bucket without blocking any thread, and after repeated failures the resolver fails lookups right away for a
+ * while instead of adding to Mojang's load.
+ */
+public class BatchingMojangResolver implements MojangResolver {
+    public static final String PROFILES_URL = "https://api.mojang.com/profiles/minecraft";
+    public static final String NAMES_URL = "https://api.mojang.com/user/profiles/%s/names";
+    private static final int PROFILES_PER_REQUEST = 100;
+    private static final long BATCH_WINDOW = 50;
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_DURATION = TimeUnit.SECONDS.toNanos(30);
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final IOException PAUSED = new IOException("Mojang lookups are paused after repeated failures");
+
+    private final OkHttpClient httpClient;
+    private final ScheduledExecutorService scheduler;
+    private final String profilesUrl;
+    private final String namesUrl;
+    private final long timeout;
+    private final TokenBucket bucket;
+
+    private final Map<String, CompletableFuture<Profile>> pendingProfiles = new ConcurrentHashMap<>();
+    private final Map<UUID, CompletableFuture<String>> pendingNames = new ConcurrentHashMap<>();
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final Object flushLock = new Object();
+    private boolean flushScheduled;
+
+    private int failures;
+    private long openUntil;
+
+    /**
+     * @param profilesUrl       the endpoint taking a JSON array of names, see {@link #PROFILES_URL}
+     * @param namesUrl          the name history endpoint, with a {@code %s} for the UUID, see {@link #NAMES_URL}
+     * @param timeout           how long a lookup may take in total, in milliseconds
+     * @param requestsPerSecond how many requests Mojang gets per second on average, bursts can be up to 10 requests
+     */
+    public BatchingMojangResolver(OkHttpClient httpClient, ScheduledExecutorService scheduler, String profilesUrl,
+                                  String namesUrl, long timeout, double requestsPerSecond) {
+        this.httpClient = httpClient.clone();
+        this.httpClient.setConnectTimeout(timeout, TimeUnit.MILLISECONDS);
+        this.httpClient.setReadTimeout(timeout, TimeUnit.MILLISECONDS);
+        this.scheduler = scheduler;
+        this.profilesUrl = profilesUrl;
+        this.namesUrl = namesUrl;
+        this.timeout = timeout;
+        this.bucket = new TokenBucket(10, requestsPerSecond);
+    }
+
+    @Override
+    public CompletableFuture<Profile> resolveProfile(String name) {
+        String key = name.toLowerCase();
+        CompletableFuture<Profile> created = new CompletableFuture<>();
+        CompletableFuture<Profile> future = pendingProfiles.putIfAbsent(key, created);
+        if (future != null)
+            return future;
+        created.whenComplete((profile, e) -> pendingProfiles.remove(key, created));
+        queue.add(name);
+        synchronized (flushLock) {
+            if (!flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(this::flush, BATCH_WINDOW, TimeUnit.MILLISECONDS);
+            }
+        }
+        return created.orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        List<String> batch = new ArrayList<>(PROFILES_PER_REQUEST);
+        synchronized (flushLock) {
+            long wait = acquire();
+            if (wait > 0) {
+                scheduler.schedule(this::flush, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            if (wait < 0) {
+                String name;
+                while ((name = queue.poll()) != null) {
+                    completeProfile(name, null, PAUSED);
+                }
+                flushScheduled = false;
+                return;
+            }
+            String name;
+            while (batch.size() < PROFILES_PER_REQUEST && (name = queue.poll()) != null) {
+                batch.add(name);
+            }
+            // Anything left over goes out with the next request.
+            flushScheduled = !queue.isEmpty();
+            if (flushScheduled)
+                scheduler.execute(this::flush);
+        }
+        if (batch.isEmpty())
+            return;
+
+        Request request = new Request.Builder().url(profilesUrl)
+                .post(RequestBody.create(JSON, RedisVelocity.getGson().toJson(batch))).build();
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Request request, IOException e) {
+                onRequestFailed();
+                for (String name : batch) {
+                    completeProfile(name, null, e);
+                }
+            }
+
+            @Override
+            public void onResponse(Response response) throws IOException {
+                Map<String, Profile> found = new HashMap<>();
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful())
+                        throw new IOException("Mojang answered with HTTP " + response.code());
+                    StoredProfile[] profiles = RedisVelocity.getGson().fromJson(body.string(), StoredProfile[].class);
+                    for (StoredProfile profile : profiles) {
+                        found.put(profile.name.toLowerCase(), new Profile(profile.name, UUIDFetcher.getUUID(profile.id)));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    onFailure(request, e instanceof IOException ? (IOException) e : new IOException(e));
+                    return;
+                }
+                onRequestSucceeded();
+                for (String name : batch) {
+                    completeProfile(name, found.get(name.toLowerCase()), null);
+                }
+            }
+        });
+    }
+
+    private void completeProfile(String name, Profile profile, Throwable error) {
+        CompletableFuture<Profile> future = pendingProfiles.get(name.toLowerCase());
+        if (future == null)
+            return;
+        if (error != null)
+            future.completeExceptionally(error);
+        else
+            future.complete(profile);
+    }
+
+    @Override
+    public CompletableFuture<String> resolveName(UUID uuid) {
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> future = pendingNames.putIfAbsent(uuid, created);
+        if (future != null)
+            return future;
+        created.whenComplete((name, e) -> pendingNames.remove(uuid, created));
+        requestName(uuid, created);
+        return created.orTimeout(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void requestName(UUID uuid, CompletableFuture<String> future) {
+        if (future.isDone())
+            return;
+        long wait;
+        synchronized (flushLock) {
+            wait = acquire();
+        }
+        if (wait > 0) {
+            scheduler.schedule(() -> requestName(uuid, future), wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        if (wait < 0) {
+            future.completeExceptionally(PAUSED);
+            return;
+        }
+        Request request = new Request.Builder()
+                .url(String.format(namesUrl, uuid.toString().replace("-", ""))).get().build();
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Request request, IOException e) {
+                onRequestFailed();
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                String name;
+                try (ResponseBody body = response.body()) {
+                    if (response.code() == 204 || response.code() == 404) {
+                        name = null;
+                    } else if (!response.isSuccessful()) {
+                        throw new IOException("Mojang answered with HTTP " + response.code());
+                    } else {
+                        Type listType = new TypeToken<List<NameFetcher.Name>>() {
+                        }.getType();
+                        List<NameFetcher.Name> names = RedisVelocity.getGson().fromJson(body.string(), listType);
+                        NameFetcher.Name last = Iterables.getLast(names, null);
+                        name = last == null ? null : last.getName();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    onFailure(request, e instanceof IOException ? (IOException) e : new IOException(e));
+                    return;
+                }
+                onRequestSucceeded();
+                future.complete(name);
+            }
+        });
+    }
+
+    /**
+     * Checks the circuit breaker and takes a token from the bucket. Must hold {@link #flushLock}.
+     *
+     * @return 0 if the request may be sent, -1 if lookups are paused, otherwise how many nanoseconds until
+     * the next token is available
+     */
+    private long acquire() {
+        long now = System.nanoTime();
+        if (openUntil != 0) {
+            if (now - openUntil < 0)
+                return -1;
+            // Let a single request through to see whether Mojang is back, the others fail until it succeeded.
+            openUntil = now + OPEN_DURATION;
+        }
+        return bucket.tryAcquire(now);
+    }
+
+    private void onRequestSucceeded() {
+        synchronized (flushLock) {
+            failures = 0;
+            openUntil = 0;
+        }
+    }
+
+    private void onRequestFailed() {
+        synchronized (flushLock) {
+            if (++failures >= FAILURE_THRESHOLD)
+                openUntil = System.nanoTime() + OPEN_DURATION;
+        }
+    }
+
+    private static class StoredProfile {
+        String id;
+        String name;
+    }
+
+    private static class TokenBucket {
+        private final double capacity;
+        private final double tokensPerNano;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(double capacity, double tokensPerSecond) {
+            this.capacity = capacity;
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.tokens = capacity;
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise how many nanoseconds until the next one is available
+         */
+        long tryAcquire(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / tokensPerNano);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.invvk.redisvelocity.util.uuid;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.function.IntPredicate;
+
+/**
+ * Names and UUIDs kept in a memory mapped file, so they are still known after a restart and take up no heap.
+ * <p>
+ * The file holds two fixed size hash tables, one keyed by UUID and one by lowercase name, with slots of this layout:
+ * <pre>
+ *   0  most significant bits of the UUID
+ *   8  least significant bits of the UUID
+ *  16  expiry in epoch millis, 0 for an empty slot
+ *  24  length of the name
+ *  25  the name, at most 16 bytes of UTF-8
+ * </pre>
+ * A key is looked for in a small window of slots after its hash. When the window is full, the entry that expires
+ * first is replaced, so the file never grows. Everything in it is also in Redis, so a file that doesn't match
+ * is simply started over.
+ */
+final class MappedUUIDStore implements Closeable {
+    private static final int MAGIC = 0x52565553;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 48;
+    private static final int MAX_NAME_LENGTH = 16;
+    private static final int PROBES = 8;
+    static final int MAX_CAPACITY = Integer.MAX_VALUE / SLOT_SIZE;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer byUuid;
+    private final MappedByteBuffer byName;
+    private final int capacity;
+
+    MappedUUIDStore(Path file, int capacity) throws IOException {
+        Preconditions.checkArgument(capacity > 0 && capacity <= MAX_CAPACITY, "capacity must be between 1 and %s", MAX_CAPACITY);
+        this.capacity = capacity;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long tableSize = (long) capacity * SLOT_SIZE;
+
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        boolean valid = header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == capacity
+                && channel.size() == HEADER_SIZE + 2 * tableSize;
+        if (!valid) {
+            channel.truncate(0);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        }
+        this.byUuid = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, tableSize);
+        this.byName = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + tableSize, tableSize);
+        if (!valid) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, capacity);
+            header.force();
+        }
+    }
+
+    synchronized UUIDTranslator.CachedUUIDEntry getByUuid(UUID uuid) {
+        int offset = find(byUuid, hash(uuid), slot -> hasUuid(byUuid, slot, uuid));
+        return offset == -1 ? null : read(byUuid, offset);
+    }
+
+    /**
+     * @param name the name in lowercase
+     */
+    synchronized UUIDTranslator.CachedUUIDEntry getByName(String name) {
+        int offset = find(byName, name.hashCode(), slot -> hasName(byName, slot, name));
+        return offset == -1 ? null : read(byName, offset);
+    }
+
+    synchronized void put(UUIDTranslator.CachedUUIDEntry entry) {
+        byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_LENGTH)
+            return;
+        UUID uuid = entry.getUuid();
+        String lowercase = entry.getName().toLowerCase();
+        write(byUuid, slotFor(byUuid, hash(uuid), slot -> hasUuid(byUuid, slot, uuid)), entry, name);
+        write(byName, slotFor(byName, lowercase.hashCode(), slot -> hasName(byName, slot, lowercase)), entry, name);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        byUuid.force();
+        byName.force();
+        channel.close();
+    }
+
+    private static int hash(UUID uuid) {
+        long bits = uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    private int offset(int hash, int probe) {
+        int mixed = hash * 0x9E3779B9;
+        int start = ((mixed ^ (mixed >>> 16)) & Integer.MAX_VALUE) % capacity;
+        return ((start + probe) % capacity) * SLOT_SIZE;
+    }
+
+    private int find(ByteBuffer table, int hash, IntPredicate matches) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < PROBES; i++) {
+            int offset = offset(hash, i);
+            if (table.getLong(offset + 16) > now && matches.test(offset))
+                return offset;
+        }
+        return -1;
+    }
+
+    // The slot already holding the key, or else the one that expires first. Empty slots have an expiry of 0.
+    private int slotFor(ByteBuffer table, int hash, IntPredicate matches) {
+        int oldest = -1;
+        long oldestExpiry = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES; i++) {
+            int offset = offset(hash, i);
+            long expiry = table.getLong(offset + 16);
+            if (expiry != 0 && matches.test(offset))
+                return offset;
+            if (expiry < oldestExpiry) {
+                oldest = offset;
+                oldestExpiry = expiry;
+            }
+        }
+        return oldest;
+    }
+
+    private static boolean hasUuid(ByteBuffer table, int offset, UUID uuid) {
+        return table.getLong(offset) == uuid.getMostSignificantBits() && table.getLong(offset + 8) == uuid.getLeastSignificantBits();
+    }
+
+    private static boolean hasName(ByteBuffer table, int offset, String name) {
+        String stored = readName(table, offset);
+        return stored != null && stored.toLowerCase().equals(name);
+    }
+
+    private static String readName(ByteBuffer table, int offset) {
+        int length = table.get(offset + 24);
+        if (length <= 0 || length > MAX_NAME_LENGTH)
+            return null;
+        byte[] name = new byte[length];
+        table.get(offset + 25, name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static UUIDTranslator.CachedUUIDEntry read(ByteBuffer table, int offset) {
+        String name = readName(table, offset);
+        if (name == null)
+            return null;
+        return new UUIDTranslator.CachedUUIDEntry(name, new UUID(table.getLong(offset), table.getLong(offset + 8)),
+                table.getLong(offset + 16));
+    }
+
+    private static void write(ByteBuffer table, int offset, UUIDTranslator.CachedUUIDEntry entry, byte[] name) {
+        // Clear the expiry first, so a slot written half-way before a crash reads as empty.
+        table.putLong(offset + 16, 0);
+        table.putLong(offset, entry.getUuid().getMostSignificantBits());
+        table.putLong(offset + 8, entry.getUuid().getLeastSignificantBits());
+        table.put(offset + 24, (byte) name.length);
+        table.put(offset + 25, name);
+        table.putLong(offset + 16, entry.getExpiry());
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.invvk.redisvelocity.util.uuid;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Looks up names and UUIDs that are not known to the network at Mojang.
+ * <p>
+ * Futures complete with null if Mojang doesn't know the name or UUID, and exceptionally if it couldn't be asked.
+ */
+public interface MojangResolver {
+    /**
+     * @return the profile of the player with this name, case-insensitively
+     */
+    CompletableFuture<Profile> resolveProfile(String name);
+
+    CompletableFuture<String> resolveName(UUID uuid);
+
+    @Getter
+    @RequiredArgsConstructor
+    final class Profile {
+        /**
+         * The name as spelled by the player.
+         */
+        private final String name;
+        private final UUID uuid;
+    }
+}
@@ -6,6 +6,7 @@ import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.ResponseBody;
 import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
@@ -37,6 +38,7 @@ public class NameFetcher {
         return humanNames;
     }
 
+    @Getter
     public static class Name {
         private String name;
         private long changedToAt;
@@ -1,40 +1,294 @@
 package io.github.invvk.redisvelocity.util.uuid;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Iterables;
 import io.github.invvk.redisvelocity.RedisVelocity;
 import com.velocitypowered.api.proxy.Player;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.resps.ScanResult;
 import redis.clients.jedis.exceptions.JedisException;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
-@RequiredArgsConstructor
 public final class UUIDTranslator {
     private static final Pattern UUID_PATTERN = Pattern.compile("[a-fA-F0-9]{8}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{4}-[a-fA-F0-9]{12}");
     private static final Pattern MOJANGIAN_UUID_PATTERN = Pattern.compile("[a-fA-F0-9]{32}");
+    private static final long ENTRY_LIFETIME = TimeUnit.DAYS.toMillis(3);
+    // Every entry is stored as two plain keys that expire on their own: the name key holds "<uuid>:<name>",
+    // the UUID key holds the name. Older versions kept JSON entries in the uuid-cache hash, which is still read
+    // from until the janitor has moved all of it over.
+    private static final String NAME_PREFIX = "uuid-cache:name:";
+    private static final String UUID_PREFIX = "uuid-cache:uuid:";
+    private static final String LEGACY_HASH = "uuid-cache";
+    private static final int JANITOR_BATCH = 100;
+    /**
+     * Every entry this proxy stores is announced here as "uuid:name", so the other proxies add it to their filter.
+     */
+    public static final String CHANNEL = "redisvelocity-uuid-cache";
     private final RedisVelocity plugin;
-    private final Map<String, CachedUUIDEntry> nameToUuidMap = new ConcurrentHashMap<>(128, 0.5f, 4);
-    private final Map<UUID, CachedUUIDEntry> uuidToNameMap = new ConcurrentHashMap<>(128, 0.5f, 4);
+    // Bounded with a frequency biased policy, so players resolved once don't push out the regulars.
+    // Entries are removed by the scheduler once they expire, not only when they are read again.
+    private final Cache<String, CachedUUIDEntry> nameToUuidMap;
+    private final Cache<UUID, CachedUUIDEntry> uuidToNameMap;
+    // Every lowercase name and UUID known to the network. Lookups for ones it has definitely never seen skip Redis.
+    // It is built from the uuid-cache keys and kept complete from the entries other proxies announce. It is rebuilt
+    // whenever announcements may have been missed, and stops answering if it can't be kept complete.
+    private final long expectedEntries;
+    private volatile BloomFilter<CharSequence> knownFilter;
+    // The filter being rebuilt, which gets every entry added meanwhile as well. Guarded by filterLock.
+    private BloomFilter<CharSequence> nextFilter;
+    private final Object filterLock = new Object();
+    private volatile boolean filterReady;
+    private volatile boolean filterBroken;
+    /**
+     * Where names and UUIDs unknown to the network are looked up, replaceable for tests.
+     */
+    @Setter
+    private MojangResolver mojangResolver;
+    // Names and UUIDs from before the last restart, if enabled.
+    private MappedUUIDStore localStore;
+    // Whether the legacy hash still exists, assumed until checked.
+    private volatile boolean legacyHash = true;
+    // Where the janitor left off in the legacy hash. Only touched by the janitor task.
+    private String janitorCursor = ScanParams.SCAN_POINTER_START;
 
-    private void addToMaps(String name, UUID uuid) {
-        // This is why I like LocalDate...
+    public UUIDTranslator(RedisVelocity plugin, long maximumSize, long expectedEntries) {
+        this.plugin = plugin;
+        this.nameToUuidMap = createCache(maximumSize);
+        this.uuidToNameMap = createCache(maximumSize);
+        this.expectedEntries = expectedEntries;
+        this.knownFilter = createFilter();
+    }
+
+    private BloomFilter<CharSequence> createFilter() {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedEntries, 0.01);
+    }
+
+    /**
+     * Builds the filter from the stored names and UUIDs, including the legacy hash, and replaces the current one
+     * with it. Entries added while it is built go into both. Runs on startup and whenever announcements of other
+     * proxies may have been missed, off the main threads.
+     */
+    public void rebuildFilter() {
+        long started = System.currentTimeMillis();
+        long count = 0;
+        BloomFilter<CharSequence> rebuilt = createFilter();
+        synchronized (filterLock) {
+            // Another rebuild is running, it will see everything this one would.
+            if (nextFilter != null)
+                return;
+            nextFilter = rebuilt;
+        }
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            legacyHash = jedis.exists(LEGACY_HASH);
+            ScanParams params = new ScanParams().match(LEGACY_HASH + ":*").count(1000);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> result = jedis.scan(cursor, params);
+                for (String key : result.getResult()) {
+                    if (key.startsWith(NAME_PREFIX))
+                        rebuilt.put(key.substring(NAME_PREFIX.length()));
+                    else if (key.startsWith(UUID_PREFIX))
+                        rebuilt.put(key.substring(UUID_PREFIX.length()));
+                    count++;
+                }
+                cursor = result.getCursor();
+            } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+            if (legacyHash) {
+                params = new ScanParams().count(1000);
+                do {
+                    ScanResult<Map.Entry<String, String>> result = jedis.hscan(LEGACY_HASH, cursor, params);
+                    for (Map.Entry<String, String> entry : result.getResult()) {
+                        rebuilt.put(entry.getKey());
+                        count++;
+                    }
+                    cursor = result.getCursor();
+                } while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+            }
+        } catch (JedisException e) {
+            synchronized (filterLock) {
+                nextFilter = null;
+                // What was missed can't be told anymore, so lookups go to Redis until a rebuild succeeds.
+                filterReady = false;
+            }
+            plugin.getLogger().error("Unable to build the known names filter, all lookups will go to Redis", e);
+            return;
+        }
+        boolean rebuild = filterReady;
+        synchronized (filterLock) {
+            knownFilter = rebuilt;
+            nextFilter = null;
+            filterReady = true;
+        }
+        String loaded = "Loaded " + count + " known names and UUIDs in " + (System.currentTimeMillis() - started) + " ms.";
+        if (rebuild)
+            plugin.getLogger().debug(loaded);
+        else
+            plugin.getLogger().info(loaded);
+    }
+
+    private void addToFilter(String name, UUID uuid) {
+        synchronized (filterLock) {
+            knownFilter.put(name.toLowerCase());
+            knownFilter.put(uuid.toString());
+            if (nextFilter != null) {
+                nextFilter.put(name.toLowerCase());
+                nextFilter.put(uuid.toString());
+            }
+        }
+    }
+
+    /**
+     * Records an entry announced on {@link #CHANNEL} by another proxy, which stored it in Redis already.
+     */
+    public void onAnnounced(String message) {
+        int separator = message.indexOf(':');
+        if (separator < 0)
+            return;
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(message.substring(0, separator));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        addToFilter(message.substring(separator + 1), uuid);
+    }
+
+    /**
+     * Records a player announced by another proxy, whose name was stored by that proxy.
+     *
+     * @param name the name of the player, or null if the other proxy didn't send it
+     */
+    public void addKnown(String name, UUID uuid) {
+        if (name == null) {
+            // An older proxy, the filter would miss its players from now on.
+            if (!filterBroken)
+                plugin.getLogger().warn("Another proxy doesn't announce player names, known names filter disabled.");
+            filterBroken = true;
+            return;
+        }
+        addToFilter(name, uuid);
+    }
 
+    /**
+     * Keeps every name and UUID this proxy learns in a memory mapped file as well, and looks there before asking
+     * Redis. Entries written before a restart are found again right away.
+     *
+     * @param capacity how many entries the file holds
+     */
+    public void openLocalStore(Path file, int capacity) throws IOException {
+        localStore = new MappedUUIDStore(file, Math.min(capacity, MappedUUIDStore.MAX_CAPACITY));
+    }
+
+    public void closeLocalStore() {
+        if (localStore == null)
+            return;
+        try {
+            localStore.close();
+        } catch (IOException e) {
+            plugin.getLogger().error("Unable to close the local UUID store", e);
+        }
+    }
+
+    private CachedUUIDEntry fromLocalStore(String name) {
+        CachedUUIDEntry entry = localStore == null ? null : localStore.getByName(name);
+        if (entry != null)
+            addToMaps(entry);
+        return entry;
+    }
+
+    private CachedUUIDEntry fromLocalStore(UUID uuid) {
+        CachedUUIDEntry entry = localStore == null ? null : localStore.getByUuid(uuid);
+        if (entry != null)
+            addToMaps(entry);
+        return entry;
+    }
+
+    private boolean mightBeKnown(String key) {
+        return !filterReady || filterBroken || knownFilter.mightContain(key);
+    }
+
+    private static <K> Cache<K, CachedUUIDEntry> createCache(long maximumSize) {
+        return Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new Expiry<K, CachedUUIDEntry>() {
+                    @Override
+                    public long expireAfterCreate(K key, CachedUUIDEntry value, long currentTime) {
+                        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, value.getExpiry() - System.currentTimeMillis()));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(K key, CachedUUIDEntry value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(K key, CachedUUIDEntry value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .scheduler(Scheduler.systemScheduler())
+                .recordStats()
+                .build();
+    }
+
+    private CachedUUIDEntry addToMaps(String name, UUID uuid) {
         // Cache the entry for three days.
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.DAY_OF_MONTH, 3);
+        CachedUUIDEntry entry = new CachedUUIDEntry(name, uuid, System.currentTimeMillis() + ENTRY_LIFETIME);
+        cacheEntry(entry);
+        addToFilter(name, uuid);
+        return entry;
+    }
+
+    private void addToMaps(CachedUUIDEntry entry) {
+        nameToUuidMap.put(entry.getName().toLowerCase(), entry);
+        uuidToNameMap.put(entry.getUuid(), entry);
+    }
+
+    // Remembers an entry learned from Redis or another proxy, across restarts if the local store is enabled.
+    private void cacheEntry(CachedUUIDEntry entry) {
+        addToMaps(entry);
+        if (localStore != null)
+            localStore.put(entry);
+    }
+
+    /**
+     * @return the statistics of the name and UUID caches, in the form used for the other RedisVelocity caches
+     */
+    public Map<String, com.google.common.cache.CacheStats> getCacheStats() {
+        return ImmutableMap.of("uuid-to-name", toGuava(uuidToNameMap.stats()), "name-to-uuid", toGuava(nameToUuidMap.stats()));
+    }
+
+    public Map<String, Long> getCacheSizes() {
+        return ImmutableMap.of("uuid-to-name", uuidToNameMap.estimatedSize(), "name-to-uuid", nameToUuidMap.estimatedSize());
+    }
 
-        // Create the entry and populate the local maps
-        CachedUUIDEntry entry = new CachedUUIDEntry(name, uuid, calendar);
-        nameToUuidMap.put(name.toLowerCase(), entry);
-        uuidToNameMap.put(uuid, entry);
+    private static com.google.common.cache.CacheStats toGuava(CacheStats stats) {
+        return new com.google.common.cache.CacheStats(stats.hitCount(), stats.missCount(), stats.loadSuccessCount(),
+                stats.loadFailureCount(), stats.totalLoadTime(), stats.evictionCount());
     }
 
     public final UUID getTranslatedUuid(@NonNull String player, boolean expensiveLookups) {
@@ -45,13 +299,9 @@ public final class UUIDTranslator {
             return optional.get().getUniqueId();
 
         // Check if it exists in the map
-        CachedUUIDEntry cachedUUIDEntry = nameToUuidMap.get(player.toLowerCase());
-        if (cachedUUIDEntry != null) {
-            if (!cachedUUIDEntry.expired())
-                return cachedUUIDEntry.getUuid();
-            else
-                nameToUuidMap.remove(player);
-        }
+        CachedUUIDEntry cachedUUIDEntry = nameToUuidMap.getIfPresent(player.toLowerCase());
+        if (cachedUUIDEntry != null)
+            return cachedUUIDEntry.getUuid();
 
         // Check if we can exit early
         if (UUID_PATTERN.matcher(player).find()) {
@@ -69,41 +319,37 @@ public final class UUIDTranslator {
             return UUID.nameUUIDFromBytes(("OfflinePlayer:" + player).getBytes(Charsets.UTF_8));
         }
 
+        CachedUUIDEntry stored = fromLocalStore(player.toLowerCase());
+        if (stored != null)
+            return stored.getUuid();
+
+        // Nobody on the network has ever seen this name, no need to ask Redis.
+        boolean known = mightBeKnown(player.toLowerCase());
+        if (!known && !expensiveLookups)
+            return null;
+
         // Let's try Redis.
         try (Jedis jedis = plugin.getPool().getResource()) {
-            String stored = jedis.hget("uuid-cache", player.toLowerCase());
-            if (stored != null) {
-                // Found an entry value. Deserialize it.
-                CachedUUIDEntry entry = RedisVelocity.getGson().fromJson(stored, CachedUUIDEntry.class);
-
-                // Check for expiry:
-                if (entry.expired()) {
-                    jedis.hdel("uuid-cache", player.toLowerCase());
-                    // Doesn't hurt to also remove the UUID entry as well.
-                    jedis.hdel("uuid-cache", entry.getUuid().toString());
-                } else {
-                    nameToUuidMap.put(player.toLowerCase(), entry);
-                    uuidToNameMap.put(entry.getUuid(), entry);
-                    return entry.getUuid();
-                }
+            CachedUUIDEntry entry = known ? fetchByName(player.toLowerCase(), jedis) : null;
+            if (entry != null) {
+                cacheEntry(entry);
+                return entry.getUuid();
             }
 
             // That didn't work. Let's ask Mojang.
             if (!expensiveLookups || !plugin.getServer().getConfiguration().isOnlineMode())
                 return null;
 
-            Map<String, UUID> uuidMap1;
+            MojangResolver.Profile profile;
             try {
-                uuidMap1 = new UUIDFetcher(Collections.singletonList(player)).call();
-            } catch (Exception e) {
+                profile = mojangResolver.resolveProfile(player).join();
+            } catch (CompletionException | CancellationException e) {
                 plugin.getLogger().error("Unable to fetch UUID from Mojang for " + player, e);
                 return null;
             }
-            for (Map.Entry<String, UUID> entry : uuidMap1.entrySet()) {
-                if (entry.getKey().equalsIgnoreCase(player)) {
-                    persistInfo(entry.getKey(), entry.getValue(), jedis);
-                    return entry.getValue();
-                }
+            if (profile != null) {
+                persistInfo(profile.getName(), profile.getUuid(), jedis);
+                return profile.getUuid();
             }
         } catch (JedisException e) {
             plugin.getLogger().error("Unable to fetch UUID for " + player, e);
@@ -120,32 +366,25 @@ public final class UUIDTranslator {
             return optional.get().getUsername();
 
         // Check if it exists in the map
-        CachedUUIDEntry cachedUUIDEntry = uuidToNameMap.get(player);
-        if (cachedUUIDEntry != null) {
-            if (!cachedUUIDEntry.expired())
-                return cachedUUIDEntry.getName();
-            else
-                uuidToNameMap.remove(player);
-        }
+        CachedUUIDEntry cachedUUIDEntry = uuidToNameMap.getIfPresent(player);
+        if (cachedUUIDEntry != null)
+            return cachedUUIDEntry.getName();
+
+        CachedUUIDEntry stored = fromLocalStore(player);
+        if (stored != null)
+            return stored.getName();
+
+        // Nobody on the network has ever seen this UUID, no need to ask Redis.
+        boolean known = mightBeKnown(player.toString());
+        if (!known && !expensiveLookups)
+            return null;
 
         // Okay, it wasn't locally cached. Let's try Redis.
         try (Jedis jedis = plugin.getPool().getResource()) {
-            String stored = jedis.hget("uuid-cache", player.toString());
-            if (stored != null) {
-                // Found an entry value. Deserialize it.
-                CachedUUIDEntry entry = RedisVelocity.getGson().fromJson(stored, CachedUUIDEntry.class);
-
-                // Check for expiry:
-                if (entry.expired()) {
-                    jedis.hdel("uuid-cache", player.toString());
-                    // Doesn't hurt to also remove the named entry as well.
-                    // TODO: Since UUIDs are fixed, we could look up the name and see if the UUID matches.
-                    jedis.hdel("uuid-cache", entry.getName());
-                } else {
-                    nameToUuidMap.put(entry.getName().toLowerCase(), entry);
-                    uuidToNameMap.put(player, entry);
-                    return entry.getName();
-                }
+            CachedUUIDEntry entry = known ? fetchByUuid(player, jedis) : null;
+            if (entry != null) {
+                cacheEntry(entry);
+                return entry.getName();
             }
 
             if (!expensiveLookups || !plugin.getServer().getConfiguration().isOnlineMode())
@@ -154,9 +393,8 @@ public final class UUIDTranslator {
             // That didn't work. Let's ask Mojang. This call may fail, because Mojang is insane.
             String name;
             try {
-                List<String> nameHist = NameFetcher.nameHistoryFromUuid(player);
-                name = Iterables.getLast(nameHist, null);
-            } catch (Exception e) {
+                name = mojangResolver.resolveName(player).join();
+            } catch (CompletionException | CancellationException e) {
                 plugin.getLogger().error("Unable to fetch name from Mojang for " + player, e);
                 return null;
             }
@@ -173,27 +411,250 @@ public final class UUIDTranslator {
         }
     }
 
+    /**
+     * Fetches the names of several UUIDs at once. Online players and local entries are resolved first, the
+     * remaining UUIDs are fetched from Redis with a single MGET. Only those still missing are looked up one by one
+     * at Mojang, and only if {@code expensiveLookups} is true.
+     *
+     * @return the names that were found, UUIDs without a known name are left out
+     */
+    public final Map<UUID, String> getNamesFromUuids(@NonNull Collection<UUID> players, boolean expensiveLookups) {
+        Map<UUID, String> names = new HashMap<>(players.size());
+        List<UUID> misses = new ArrayList<>();
+        List<UUID> unknown = new ArrayList<>();
+        for (UUID player : players) {
+            Optional<Player> optional = plugin.getServer().getPlayer(player);
+            if (optional.isPresent()) {
+                names.put(player, optional.get().getUsername());
+                continue;
+            }
+            CachedUUIDEntry cachedUUIDEntry = uuidToNameMap.getIfPresent(player);
+            if (cachedUUIDEntry == null)
+                cachedUUIDEntry = fromLocalStore(player);
+            if (cachedUUIDEntry != null) {
+                names.put(player, cachedUUIDEntry.getName());
+                continue;
+            }
+            if (mightBeKnown(player.toString()))
+                misses.add(player);
+            else
+                unknown.add(player);
+        }
+
+        if (misses.isEmpty() && (unknown.isEmpty() || !expensiveLookups))
+            return names;
+
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            String[] keys = new String[misses.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = UUID_PREFIX + misses.get(i);
+            }
+            List<String> stored = keys.length == 0 ? Collections.emptyList() : jedis.mget(keys);
+            List<UUID> legacy = new ArrayList<>();
+            for (int i = 0; i < keys.length; i++) {
+                UUID player = misses.get(i);
+                String name = stored.get(i);
+                if (name != null) {
+                    cacheEntry(new CachedUUIDEntry(name, player, System.currentTimeMillis() + ENTRY_LIFETIME));
+                    names.put(player, name);
+                } else if (legacyHash) {
+                    legacy.add(player);
+                } else {
+                    unknown.add(player);
+                }
+            }
+
+            if (!legacy.isEmpty()) {
+                String[] fields = new String[legacy.size()];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = legacy.get(i).toString();
+                }
+                List<String> values = jedis.hmget(LEGACY_HASH, fields);
+                Pipeline pipeline = jedis.pipelined();
+                for (int i = 0; i < fields.length; i++) {
+                    UUID player = legacy.get(i);
+                    CachedUUIDEntry entry = values.get(i) == null ? null : CachedUUIDEntry.fromJson(values.get(i));
+                    if (entry != null)
+                        migrate(entry, pipeline);
+                    if (entry == null || entry.expired()) {
+                        unknown.add(player);
+                    } else {
+                        cacheEntry(entry);
+                        names.put(player, entry.getName());
+                    }
+                }
+                pipeline.sync();
+            }
+
+            if (!expensiveLookups || !plugin.getServer().getConfiguration().isOnlineMode())
+                return names;
+
+            // Ask for all of them before waiting on any.
+            Map<UUID, CompletableFuture<String>> lookups = new HashMap<>();
+            for (UUID player : unknown) {
+                lookups.put(player, mojangResolver.resolveName(player));
+            }
+            for (UUID player : unknown) {
+                String name;
+                try {
+                    name = lookups.get(player).join();
+                } catch (CompletionException | CancellationException e) {
+                    plugin.getLogger().error("Unable to fetch name from Mojang for " + player, e);
+                    continue;
+                }
+                if (name != null) {
+                    persistInfo(name, player, jedis);
+                    names.put(player, name);
+                }
+            }
+        } catch (JedisException e) {
+            plugin.getLogger().error("Unable to fetch names for " + misses.size() + " players", e);
+        }
+        return names;
+    }
+
     public final void persistInfo(String name, UUID uuid, Jedis jedis) {
-        addToMaps(name, uuid);
-        String json = RedisVelocity.getGson().toJson(uuidToNameMap.get(uuid));
-        jedis.hmset("uuid-cache", ImmutableMap.of(name.toLowerCase(), json, uuid.toString(), json));
+        Pipeline pipeline = jedis.pipelined();
+        persistInfo(name, uuid, pipeline);
+        pipeline.sync();
     }
 
     public final void persistInfo(String name, UUID uuid, Pipeline jedis) {
         addToMaps(name, uuid);
-        String json = RedisVelocity.getGson().toJson(uuidToNameMap.get(uuid));
-        jedis.hmset("uuid-cache", ImmutableMap.of(name.toLowerCase(), json, uuid.toString(), json));
+        jedis.psetex(NAME_PREFIX + name.toLowerCase(), ENTRY_LIFETIME, uuid + ":" + name);
+        jedis.psetex(UUID_PREFIX + uuid, ENTRY_LIFETIME, name);
+        jedis.publish(CHANNEL, uuid + ":" + name);
+    }
+
+    // Entries read from the compact keys are cached locally for a full lifetime, their TTL isn't fetched.
+    private CachedUUIDEntry fetchByName(String name, Jedis jedis) {
+        String value = jedis.get(NAME_PREFIX + name);
+        if (value != null) {
+            int separator = value.indexOf(':');
+            return new CachedUUIDEntry(value.substring(separator + 1), UUID.fromString(value.substring(0, separator)),
+                    System.currentTimeMillis() + ENTRY_LIFETIME);
+        }
+        return legacyHash ? fetchLegacy(name, jedis) : null;
+    }
+
+    private CachedUUIDEntry fetchByUuid(UUID uuid, Jedis jedis) {
+        String name = jedis.get(UUID_PREFIX + uuid);
+        if (name != null)
+            return new CachedUUIDEntry(name, uuid, System.currentTimeMillis() + ENTRY_LIFETIME);
+        return legacyHash ? fetchLegacy(uuid.toString(), jedis) : null;
+    }
+
+    private CachedUUIDEntry fetchLegacy(String field, Jedis jedis) {
+        String stored = jedis.hget(LEGACY_HASH, field);
+        if (stored == null)
+            return null;
+        CachedUUIDEntry entry = CachedUUIDEntry.fromJson(stored);
+        Pipeline pipeline = jedis.pipelined();
+        migrate(entry, pipeline);
+        pipeline.sync();
+        return entry.expired() ? null : entry;
+    }
+
+    /**
+     * Moves an entry of the legacy hash to the compact keys, with what is left of its lifetime. Expired entries are
+     * only removed. Compact keys that already exist are newer, so they are left alone.
+     */
+    private static void migrate(CachedUUIDEntry entry, Pipeline pipeline) {
+        pipeline.hdel(LEGACY_HASH, entry.getName().toLowerCase(), entry.getUuid().toString());
+        long remaining = entry.getExpiry() - System.currentTimeMillis();
+        if (remaining <= 0)
+            return;
+        pipeline.set(NAME_PREFIX + entry.getName().toLowerCase(), entry.getUuid() + ":" + entry.getName(),
+                SetParams.setParams().nx().px(remaining));
+        pipeline.set(UUID_PREFIX + entry.getUuid(), entry.getName(), SetParams.setParams().nx().px(remaining));
+    }
+
+    /**
+     * Works through a few batches of the legacy uuid-cache hash, moving live entries to the compact keys and
+     * dropping expired or unreadable ones. The position in the hash is kept between calls, so a large hash is
+     * cleaned up a bit at a time. Only one proxy on the network should run this.
+     *
+     * @param batches how many HSCAN batches to work through at most
+     */
+    public void cleanUpLegacyCache(int batches) {
+        if (!legacyHash)
+            return;
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            ScanParams params = new ScanParams().count(JANITOR_BATCH);
+            for (int i = 0; i < batches; i++) {
+                ScanResult<Map.Entry<String, String>> result = jedis.hscan(LEGACY_HASH, janitorCursor, params);
+                Pipeline pipeline = jedis.pipelined();
+                Set<UUID> migrated = new HashSet<>();
+                for (Map.Entry<String, String> field : result.getResult()) {
+                    CachedUUIDEntry entry;
+                    try {
+                        entry = CachedUUIDEntry.fromJson(field.getValue());
+                    } catch (RuntimeException e) {
+                        entry = null;
+                    }
+                    if (entry != null && entry.getName() != null && entry.getUuid() != null && migrated.add(entry.getUuid()))
+                        migrate(entry, pipeline);
+                    // The field may not match the entry it holds, so it is removed on its own as well.
+                    pipeline.hdel(LEGACY_HASH, field.getKey());
+                }
+                pipeline.sync();
+
+                janitorCursor = result.getCursor();
+                if (janitorCursor.equals(ScanParams.SCAN_POINTER_START)) {
+                    checkLegacyCache(jedis);
+                    if (!legacyHash)
+                        plugin.getLogger().info("Finished migrating the old uuid-cache hash.");
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether the legacy hash is gone, so lookups stop falling back to it.
+     */
+    public void checkLegacyCache() {
+        if (!legacyHash)
+            return;
+        try (Jedis jedis = plugin.getPool().getResource()) {
+            checkLegacyCache(jedis);
+        }
+    }
+
+    /**
+     * @return false once the legacy hash is known to be gone
+     */
+    public boolean hasLegacyCache() {
+        return legacyHash;
+    }
+
+    private void checkLegacyCache(Jedis jedis) {
+        legacyHash = jedis.exists(LEGACY_HASH);
     }
 
     @RequiredArgsConstructor
     @Getter
-    private class CachedUUIDEntry {
+    static class CachedUUIDEntry {
         private final String name;
         private final UUID uuid;
-        private final Calendar expiry;
+        // Epoch millis.
+        private final long expiry;
 
         public boolean expired() {
-            return Calendar.getInstance().after(expiry);
+            return System.currentTimeMillis() >= expiry;
         }
+
+        // Reads an entry of the legacy hash, which kept a serialized Calendar as its expiry.
+        static CachedUUIDEntry fromJson(String json) {
+            StoredUUIDEntry stored = RedisVelocity.getGson().fromJson(json, StoredUUIDEntry.class);
+            return new CachedUUIDEntry(stored.name, stored.uuid, stored.expiry.getTimeInMillis());
+        }
+    }
+
+    @RequiredArgsConstructor
+    private static class StoredUUIDEntry {
+        private final String name;
+        private final UUID uuid;
+        private final Calendar expiry;
     }
 }
@@ -0,0 +1,73 @@
+local call = redis.call
+local ipairs = ipairs
+
+local proxy = ARGV[1]
+local timestamp = ARGV[2]
+local batch = tonumber(ARGV[3])
+local source = ARGV[4]
+local token = ARGV[5]
+local streamLength = ARGV[6]
+local bulk = ARGV[7] == "true"
+
+-- A cleanup on behalf of the leader stops as soon as a newer leader was elected.
+if token ~= "0" and call("GET", "redisvelocity-leader-token") ~= token then
+    return -1
+end
+
+local players = call("SPOP", "proxy:" .. proxy .. ":usersOnline", batch)
+if #players == 0 then
+    call("HDEL", "player-counts", "proxy:" .. proxy)
+    call("HDEL", "proxy-digests", proxy)
+    return 0
+end
+
+local targets = {}
+
+for _, player in ipairs(players) do
+    local hash = "player:" .. player
+    local data = call("HMGET", hash, "proxy", "server")
+    -- The player may already have reconnected to another proxy.
+    if not data[1] or data[1] == proxy then
+        local server = data[2]
+        if server and call("SREM", "server:" .. server .. ":usersOnline", player) == 1 then
+            call("HINCRBY", "player-counts", "server:" .. server, -1)
+        end
+        call("HDEL", hash, "server", "ip", "proxy")
+        call("HSET", hash, "online", timestamp)
+        targets[#targets + 1] = { target = player, sequence = call("HINCRBY", hash, "seq", 1) }
+    end
+end
+
+call("HINCRBY", "player-counts", "proxy:" .. proxy, -#players)
+call("HINCRBY", "player-counts", "total", -#players)
+
+-- Sent the way the other player updates are, see data-stream.
+local function send(message)
+    if streamLength ~= "0" then
+        call("XADD", "redisvelocity-data-stream", "MAXLEN", "~", streamLength, "*", "m", message)
+    else
+        call("PUBLISH", "redisvelocity-data", message)
+    end
+end
+
+if bulk and #targets > 0 then
+    send(cjson.encode({
+        source = source,
+        action = "BULK_LEAVE",
+        payload = { timestamp = tonumber(timestamp), players = targets }
+    }))
+else
+    -- Older versions don't understand BULK_LEAVE, see bulk-leave-messages.
+    local payload = { timestamp = tonumber(timestamp) }
+    for _, target in ipairs(targets) do
+        send(cjson.encode({
+            target = target.target,
+            source = source,
+            action = "LEAVE",
+            sequence = target.sequence,
+            payload = payload
+        }))
+    end
+end
+
+return #players
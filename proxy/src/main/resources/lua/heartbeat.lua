@@ -0,0 +1,27 @@
+local call = redis.call
+local ipairs = ipairs
+
+local proxy = ARGV[1]
+local timeout = tonumber(ARGV[2])
+local time = tonumber(call("TIME")[1])
+
+call("ZADD", "heartbeats-zset", time, proxy)
+
+-- Expires when we miss our heartbeats, for proxies listening to expired key events.
+if ARGV[3] then
+    call("SET", "proxy:" .. proxy .. ":alive", "1", "PX", ARGV[3])
+end
+
+local live = call("ZRANGEBYSCORE", "heartbeats-zset", time - timeout, "+inf")
+local lagged = {}
+
+-- Proxies that stopped beating are only forgotten once their players have been cleaned up.
+for _, id in ipairs(call("ZRANGEBYSCORE", "heartbeats-zset", "-inf", "(" .. (time - timeout))) do
+    if call("EXISTS", "proxy:" .. id .. ":usersOnline") == 1 then
+        lagged[#lagged + 1] = id
+    else
+        call("ZREM", "heartbeats-zset", id)
+    end
+end
+
+return { live, lagged, call("HGETALL", "player-counts") }
@@ -0,0 +1,25 @@
+local call = redis.call
+
+local id = ARGV[1]
+local lease = tonumber(ARGV[2])
+local token = ARGV[3]
+
+local current = call("GET", "redisvelocity-leader")
+
+if current and current == id .. ":" .. token then
+    if lease == 0 then
+        call("DEL", "redisvelocity-leader")
+        return 0
+    end
+    call("PEXPIRE", "redisvelocity-leader", lease)
+    return tonumber(token)
+end
+
+if current or lease == 0 then
+    return 0
+end
+
+-- Every new term gets a higher fencing token.
+local next = call("INCR", "redisvelocity-leader-token")
+call("SET", "redisvelocity-leader", id .. ":" .. next, "NX", "PX", lease)
+return next
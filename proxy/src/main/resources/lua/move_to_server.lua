@@ -0,0 +1,25 @@
+local call = redis.call
+
+local player = ARGV[1]
+local proxy = ARGV[2]
+local server = ARGV[3]
+
+-- The player may already have been cleaned up, by a disconnect handled first.
+if call("SISMEMBER", "proxy:" .. proxy .. ":usersOnline", player) == 0 then
+    return false
+end
+
+local hash = "player:" .. player
+-- Moved away from the server Redis has for the player, which may differ from what the proxy saw last.
+local old = call("HGET", hash, "server")
+if old and old ~= server and call("SREM", "server:" .. old .. ":usersOnline", player) == 1 then
+    call("HINCRBY", "player-counts", "server:" .. old, -1)
+end
+
+call("HSET", hash, "server", server)
+call("SADD", "servers", server)
+if call("SADD", "server:" .. server .. ":usersOnline", player) == 1 then
+    call("HINCRBY", "player-counts", "server:" .. server, 1)
+end
+
+return { call("HINCRBY", hash, "seq", 1), old or "" }
@@ -0,0 +1,33 @@
+local call = redis.call
+local ipairs = ipairs
+
+local counts = {}
+local total = 0
+
+for _, proxy in ipairs(ARGV) do
+    local n = call("SCARD", "proxy:" .. proxy .. ":usersOnline")
+    total = total + n
+    counts[#counts + 1] = "proxy:" .. proxy
+    counts[#counts + 1] = n
+end
+
+for _, server in ipairs(call("SMEMBERS", "servers")) do
+    local key = "server:" .. server .. ":usersOnline"
+    -- A player belongs in the set of the server their hash names. Others were left behind by a lost or late
+    -- update, such as a disconnect cleaned up before the server change that preceded it.
+    for _, player in ipairs(call("SMEMBERS", key)) do
+        if call("HGET", "player:" .. player, "server") ~= server then
+            call("SREM", key, player)
+        end
+    end
+    counts[#counts + 1] = "server:" .. server
+    counts[#counts + 1] = call("SCARD", key)
+end
+
+counts[#counts + 1] = "total"
+counts[#counts + 1] = total
+
+call("DEL", "player-counts")
+call("HSET", "player-counts", unpack(counts))
+
+return total